@@ -6,6 +6,7 @@ package rl.photoviewer.fx.view;
 
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
@@ -25,9 +26,9 @@ import javafx.scene.text.Font;
 import javafx.stage.FileChooser;
 import javafx.util.Duration;
 import rl.photoviewer.model.KeywordExpression;
-import rl.photoviewer.model.MapData;
 import rl.photoviewer.model.PVModel;
 import rl.photoviewer.model.PhotoMetadata;
+import rl.util.cache.LruCache;
 import rl.util.exceptions.ErrorHandler;
 import rl.util.exceptions.PersistenceException;
 import rl.util.persistence.PropertyManager;
@@ -35,8 +36,8 @@ import rl.util.persistence.PropertyManager;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
-import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.List;
 import java.util.ResourceBundle;
 
 /**
@@ -52,6 +53,10 @@ public class AgilePhotoViewerCtrl implements Initializable, PropertyChangeListen
 	static final int VISIBILITY_TAB_INDEX = 1;
 	static final int MAP_TAB_INDEX = 2;
 
+	/** Default budget of the image cache in megabytes. */
+	static final int DEFAULT_IMAGE_CACHE_SIZE_MB = 256;
+	private static final long MB = 1024 * 1024;
+
 	static final String SELECT_BTN_ID = "selectBtn";
 	static final String FIRST_BTN_ID = "firstBtn";
 	static final String PREV_BTN_ID = "prevBtn";
@@ -119,7 +124,12 @@ public class AgilePhotoViewerCtrl implements Initializable, PropertyChangeListen
 	private ContextMenu photoViewMenu;
 
 	private ImageViewCtrl photoViewCtrl = new ImageViewCtrl();
+	private PhotoLoader photoLoader = new PhotoLoader(photoViewCtrl);
+	/** Decoded photos, budget in bytes (4 bytes per pixel). */
+	private LruCache<File, Image> imageCache = new LruCache<>(
+			img -> (long) img.getWidth() * (long) img.getHeight() * 4, DEFAULT_IMAGE_CACHE_SIZE_MB * MB);
 	private ImageViewCtrl mapViewCtrl = new ImageViewCtrl();
+	private TileLayer mapTileLayer;
 	private MapDataViewCtrl mapDataViewCtrl = new MapDataViewCtrl();
 
 	private double defaultFontSize = 12; // set when calling initialize...
@@ -132,6 +142,7 @@ public class AgilePhotoViewerCtrl implements Initializable, PropertyChangeListen
 	public void initialize(URL arg0, ResourceBundle arg1) {
 		SplitPane.setResizableWithParent(leftPane, Boolean.FALSE);
 		defaultFontSize = statusLabel.getFont().getSize();
+		photoLoader.setImageCache(imageCache);
 		slideShowCombo.getItems().addAll(new Sec(2), new Sec(4), new Sec(6), new Sec(8), new Sec(12), new Sec(20));
 		slideShowCombo.setValue(new Sec(4));
 
@@ -157,6 +168,7 @@ public class AgilePhotoViewerCtrl implements Initializable, PropertyChangeListen
 		photoViewCtrl.setMaxScale(4);
 		mapViewCtrl.initialize(mapView, mapPane);
 		mapViewCtrl.setInitScale(1);
+		mapTileLayer = new TileLayer(mapViewCtrl, mapView);
 
 		rootPane.addEventHandler(KeyEvent.KEY_PRESSED, this::onKeyPressed);
 		controlPane.setOnScroll(e -> {
@@ -168,6 +180,9 @@ public class AgilePhotoViewerCtrl implements Initializable, PropertyChangeListen
 		});
 
 		model = new PVModel();
+		model.setEventExecutor(Platform::runLater);
+		model.setStreamingEnabled(true);
+		photoLoader.setThumbnailReader(model::readThumbnailData);
 		model.addPropertyChangeListener(this);
 		mapDataViewCtrl.initialize(mapViewCtrl, model);
 		mapViewCtrl.viewParamsProperty().addListener(e -> mapDataViewCtrl.update(null));
@@ -183,48 +198,42 @@ public class AgilePhotoViewerCtrl implements Initializable, PropertyChangeListen
 
 	@Override
 	public void propertyChange(PropertyChangeEvent event) {
+		if (event.getPropertyName() == PVModel.EXPORT_PROP) {
+			statusLabel.setText(model.getExportProgress().getStatusText());
+			return;
+		}
 		switch (event.getPropertyName()) {
 			case PVModel.CURR_PHOTO_PROP: {
-				Image image;
-				try {
-					PhotoMetadata data = model.getSelectedPhotoData();
-					if (data != null) {
-						image = new Image(model.getSelectedPhoto().toURI().toURL().toExternalForm());
-						captionPane.setText(data.getCaption());
-					} else {
-						image = null;
-						captionPane.setText("");
-					}
-					photoViewCtrl.setImage(image);
-					updateInfoPane();
-				} catch (MalformedURLException e) {
-					e.printStackTrace(); // should never happen...
+				PhotoMetadata data = model.getSelectedPhotoData();
+				if (data != null) {
+					photoLoader.load(model.getSelectedPhoto(), data.getOrientation());
+					captionPane.setText(data.getCaption());
+				} else {
+					photoLoader.load(null, 0);
+					captionPane.setText("");
 				}
+				updateInfoPane();
 				break;
 			}
 			case PVModel.MAP_PROP: {
-				Image image = null;
-				try {
-					MapData mapData = model.getMapData();
-					if (mapData.getFile() != null) {
-						image = new Image(mapData.getFile().toURI().toURL().toExternalForm());
-					}
-					mapViewCtrl.setImage(image);
-				} catch (MalformedURLException e) {
-					e.printStackTrace(); // should never happen...
-				}
+				mapTileLayer.showImage(model.getMapData().getFile());
 				break;
 			}
 			case PVModel.CURR_METADATA_PROP:
+				if (event.getNewValue() instanceof List)
+					for (Object file : (List<?>) event.getNewValue())
+						photoLoader.invalidate((File) file);
 				ObservableList<String> items = FXCollections.observableArrayList(model.getAllKeywords());
 				keywordLst.getSelectionModel().clearSelection();
 				keywordLst.setItems(items);
 				ratingCombo.getSelectionModel().select(model.getRatingFilter());
 				break;
 		}
+		photoLoader.prefetch(model.getPhotosToPrefetch());
 		mapDataViewCtrl.update(event.getPropertyName());
 		keywordExpressionTxt.setText(model.getVisibilityExpression().toString());
-		statusLabel.setText(model.getVisiblePhotoCount() + " Photo(s) visible.");
+		statusLabel.setText(model.getVisiblePhotoCount() + " Photo(s) visible."
+				+ (model.isLoadingMetadata() ? " Loading..." : ""));
 	}
 
 	public void onKeyPressed(KeyEvent keyEvent) {
@@ -365,18 +374,32 @@ public class AgilePhotoViewerCtrl implements Initializable, PropertyChangeListen
 			slideShowCombo.setValue(new Sec(pm.getIntValue("gui.slideshowsec", 5)));
 			sortByDateBtn.setSelected(pm.getBooleanValue("gui.sortbydate", true));
 			model.setSortByDate(sortByDateBtn.isSelected());
+			model.setScanThreadCount(pm.getIntValue("model.scanthreads", model.getScanThreadCount()));
+			model.setPrefetchCounts(pm.getIntValue("model.prefetchnext", model.getPrefetchNextCount()),
+					pm.getIntValue("model.prefetchprev", model.getPrefetchPrevCount()));
+			model.setExportThreadCount(pm.getIntValue("model.exportthreads", model.getExportThreadCount()));
+			model.setExportChecksumEnabled(pm.getBooleanValue("model.exportchecksum", true));
+			model.setExportMaxEdge(pm.getIntValue("model.exportmaxedge", model.getExportMaxEdge()));
+			model.setExportQuality((float) pm.getDoubleValue("model.exportquality", model.getExportQuality()));
+			imageCache.setMaxSize(pm.getIntValue("gui.imagecachesize", DEFAULT_IMAGE_CACHE_SIZE_MB) * MB);
 			setCaptionFontSize(pm.getDoubleValue("gui.fontsize", defaultFontSize * 2));
+			mapDataViewCtrl.setClusteringEnabled(pm.getBooleanValue("gui.clusterphotopositions", true));
 			tabPane.getSelectionModel().select(pm.getIntValue("gui.selectedtab", 0));
 			String exp = pm.getStringValue("gui.outputfile", null);
 			if (exp != null)
 				exportPath = new File(exp);
 
 			model.loadMapParamLookup();
+			model.loadMetadataIndex();
 			String map = pm.getStringValue("model.currmapfile", "");
 			if (!map.isEmpty() && new File(map).exists())
 				model.setMap(new File(map));
+			boolean restorePhoto = model.getCurrDirectory() == null;
+			String library = pm.getStringValue("model.library", "");
+			if (restorePhoto && !library.isEmpty() && new File(library).isDirectory())
+				model.openLibrary(new File(library));
 			String fileName = pm.getStringValue("model.currfile", null);
-			if (fileName != null && model.getCurrDirectory() == null) {
+			if (fileName != null && restorePhoto) {
 				File f = new File(fileName);
 				if (f.exists())
 					model.selectPhoto(f);
@@ -402,9 +425,18 @@ public class AgilePhotoViewerCtrl implements Initializable, PropertyChangeListen
 
 		pm.setValue("gui.slideshowsec", slideShowCombo.getValue().getSeconds());
 		pm.setValue("gui.sortbydate", sortByDateBtn.isSelected());
+		pm.setValue("model.scanthreads", model.getScanThreadCount());
+		pm.setValue("model.prefetchnext", model.getPrefetchNextCount());
+		pm.setValue("model.prefetchprev", model.getPrefetchPrevCount());
+		pm.setValue("model.exportthreads", model.getExportThreadCount());
+		pm.setValue("model.exportchecksum", model.isExportChecksumEnabled());
+		pm.setValue("model.exportmaxedge", model.getExportMaxEdge());
+		pm.setValue("model.exportquality", model.getExportQuality());
+		pm.setValue("gui.imagecachesize", imageCache.getMaxSize() / MB);
 		// pm.setValue("gui.showallphotopositions",
 		// mapImagePanel.isShowAllPhotoPositions());
 		pm.setValue("gui.fontsize", captionPane.getFont().getSize());
+		pm.setValue("gui.clusterphotopositions", mapDataViewCtrl.isClusteringEnabled());
 		// pm.setValue("gui.showcaptioninstatus",
 		// infoPanel.isShowCaptionInStatus());
 		pm.setValue("gui.selectedtab", tabPane.getSelectionModel().getSelectedIndex());
@@ -412,9 +444,11 @@ public class AgilePhotoViewerCtrl implements Initializable, PropertyChangeListen
 			pm.setValue("gui.outputfile", exportPath.getAbsolutePath());
 		if (model.getSelectedPhoto() != null)
 			pm.setValue("model.currfile", model.getSelectedPhoto());
+		pm.setValue("model.library", model.isLibraryMode() ? model.getCurrDirectory().getAbsolutePath() : "");
 		File file = model.getMapData().getFile();
 		pm.setValue("model.currmapfile", file != null ? file.getAbsolutePath() : "");
 		model.saveMapParamLookup();
+		model.saveMetadataIndex();
 		try {
 			pm.saveSessionProperties();
 		} catch (PersistenceException ex) {
@@ -5,6 +5,7 @@
 package rl.photoviewer.fx.view;
 
 import java.io.File;
+import java.util.Optional;
 
 import javafx.application.Platform;
 import javafx.event.ActionEvent;
@@ -15,12 +16,14 @@ import javafx.scene.control.CheckMenuItem;
 import javafx.scene.control.ContextMenu;
 import javafx.scene.control.MenuItem;
 import javafx.scene.control.ScrollPane;
+import javafx.scene.control.TextInputDialog;
 import javafx.scene.input.ContextMenuEvent;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyCodeCombination;
 import javafx.scene.input.KeyCombination;
 import javafx.scene.web.WebEngine;
 import javafx.scene.web.WebView;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import rl.photoviewer.model.PVModel;
 import rl.util.exceptions.ErrorHandler;
@@ -39,6 +42,8 @@ public class ControlPaneMenu {
 
 	private ContextMenu menu;
 	private CheckMenuItem fullScreenItem;
+	private MenuItem exportItem;
+	private MenuItem exportResizedItem;
 	MenuItem exitItem;
 
 	public ControlPaneMenu(AgilePhotoViewerCtrl mainController,
@@ -65,15 +70,21 @@ public class ControlPaneMenu {
 				.setCaptionFontSize(mainController.getCaptionFontSize() - 2));
 		decreaseFontSizeItem.setAccelerator(new KeyCodeCombination(KeyCode.MINUS, KeyCombination.CONTROL_DOWN));
 
-		MenuItem exportItem = new MenuItem("Export Visible Photos");
+		MenuItem openLibraryItem = new MenuItem("Open Library");
+		openLibraryItem.setOnAction(this::onOpenLibraryAction);
+
+		exportItem = new MenuItem("Export Visible Photos");
 		exportItem.setOnAction(this::onExportAction);
+		exportResizedItem = new MenuItem("Export Visible Photos Resized");
+		exportResizedItem.setOnAction(e -> exportPhotos(true));
 		
 		exitItem = new MenuItem("Exit");
 		exitItem.setOnAction(e -> {
 			mainController.storeSession();
 			Platform.exit();
 		});
-		menu.getItems().addAll(aboutItem, fullScreenItem, increaseFontSizeItem, decreaseFontSizeItem, exportItem, exitItem);
+		menu.getItems().addAll(aboutItem, fullScreenItem, increaseFontSizeItem, decreaseFontSizeItem, openLibraryItem,
+				exportItem, exportResizedItem, exitItem);
 	}
 
 	public void show(ContextMenuEvent event) {
@@ -87,6 +98,9 @@ public class ControlPaneMenu {
 		menu.hide();
 		fullScreenItem.setSelected(AgilePhotoViewerApp.getCurrStage()
 				.isFullScreen());
+		exportItem.setText(model.isExporting() ? "Cancel Export"
+				: "Export Visible Photos");
+		exportResizedItem.setDisable(model.isExporting());
 	}
 
 	public void onAboutAction(ActionEvent event) {
@@ -112,7 +126,49 @@ public class ControlPaneMenu {
 		alert.show();
 	}
 
+	private void onOpenLibraryAction(ActionEvent event) {
+		DirectoryChooser libraryChooser = new DirectoryChooser();
+		libraryChooser.setTitle("Open Library");
+		File curr = model.getCurrDirectory();
+		if (curr != null && curr.isDirectory())
+			libraryChooser.setInitialDirectory(curr);
+		File dir = libraryChooser.showDialog(AgilePhotoViewerApp.getCurrStage());
+		if (dir != null)
+			model.openLibrary(dir);
+	}
+
 	private void onExportAction(ActionEvent event) {
+		if (model.isExporting()) {
+			model.cancelExport();
+			mainController.setStatus("Cancelling export ...");
+		} else {
+			exportPhotos(false);
+		}
+	}
+
+	/**
+	 * Asks the user for a destination and starts exporting the visible
+	 * photos.
+	 * 
+	 * @param resized
+	 *            If true, the user is asked for the maximal edge length and
+	 *            downscaled JPEG versions are exported.
+	 */
+	private void exportPhotos(boolean resized) {
+		if (resized) {
+			TextInputDialog dialog = new TextInputDialog(
+					Integer.toString(model.getExportMaxEdge()));
+			dialog.setHeaderText("Maximal length of the longer edge (pixels):");
+			Optional<String> value = dialog.showAndWait();
+			if (!value.isPresent())
+				return;
+			try {
+				model.setExportMaxEdge(Integer.parseInt(value.get().trim()));
+			} catch (NumberFormatException e) {
+				mainController.setStatus("Invalid edge length: " + value.get());
+				return;
+			}
+		}
 		FileChooser exportChooser = new FileChooser();
 		exportChooser.setInitialFileName("default");
 		if (mainController.exportPath != null && mainController.exportPath.exists()) {
@@ -125,11 +181,12 @@ public class ControlPaneMenu {
 			String name = file.getName().equals("default") ? null : file
 					.getName();
 			mainController.exportPath = file.getParentFile();
-			int copied = model.exportPhotos(model.getVisiblePhotos(),
-					mainController.exportPath, name);
-			String txt = copied < model.getVisiblePhotoCount() ? " out of "
-					+ model.getVisiblePhotoCount() : "";
-			mainController.setStatus(copied + txt + " photo(s) exported.");
+			if (resized)
+				model.startResizedExport(model.getVisiblePhotos(),
+						mainController.exportPath, name);
+			else
+				model.startExport(model.getVisiblePhotos(),
+						mainController.exportPath, name);
 		}
 	}
 }
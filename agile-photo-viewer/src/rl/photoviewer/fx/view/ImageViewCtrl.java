@@ -16,7 +16,11 @@ import javafx.scene.layout.Pane;
 
 /**
  * Controller which is responsible for handling user events for an image pane.
- * It provides functions like zooming and panning.
+ * It provides functions like zooming and panning. The shown image may have a
+ * lower resolution than the original and may need rotation according to its
+ * EXIF orientation. Rotation is performed by the image view itself, no
+ * rotated copy of the image is created. All image coordinates refer to the
+ * original size after rotation.
  * 
  * @author Ruediger Lunde
  *
@@ -28,6 +32,17 @@ public class ImageViewCtrl {
 	private ImageView imageView;
 
 	private Image image;
+	/** Size of the image in full resolution (after rotation). */
+	private double imageWidth;
+	private double imageHeight;
+	/** EXIF orientation of the image (0 if unknown). */
+	private int orientation;
+	/**
+	 * Called when the current scale magnifies the pixels of an image with
+	 * reduced resolution (possibly null).
+	 */
+	private Runnable onLowResolution;
+	private boolean isLowResolutionReported;
 
 	private ObjectProperty<ViewParams> viewParams = new SimpleObjectProperty<>();
 
@@ -122,8 +137,53 @@ public class ImageViewCtrl {
 		return image;
 	}
 
+	/** Returns the width of the image in full resolution (after rotation). */
+	public double getImageWidth() {
+		return imageWidth;
+	}
+
+	/** Returns the height of the image in full resolution (after rotation). */
+	public double getImageHeight() {
+		return imageHeight;
+	}
+
 	public void setImage(Image image) {
+		if (image != null)
+			setImage(image, image.getWidth(), image.getHeight());
+		else
+			setImage(null, 0, 0);
+	}
+
+	/**
+	 * Shows an image which possibly has a reduced resolution.
+	 * 
+	 * @param width
+	 *            Width of the image in full resolution
+	 * @param height
+	 *            Height of the image in full resolution
+	 */
+	public void setImage(Image image, double width, double height) {
+		setImage(image, width, height, 0);
+	}
+
+	/**
+	 * Shows an image which possibly has a reduced resolution and needs
+	 * rotation.
+	 * 
+	 * @param width
+	 *            Width of the image in full resolution (before rotation)
+	 * @param height
+	 *            Height of the image in full resolution (before rotation)
+	 * @param orientation
+	 *            EXIF orientation value, supported are 3, 6 and 8
+	 */
+	public void setImage(Image image, double width, double height, int orientation) {
 		this.image = image;
+		this.orientation = orientation;
+		imageWidth = isOrientationSwapped() ? height : width;
+		imageHeight = isOrientationSwapped() ? width : height;
+		isLowResolutionReported = false;
+		updateRotation();
 		imageView.setImage(image);
 		isScaleToFitActive = true;
 		if (initScale >= 0 && image != null)
@@ -131,6 +191,25 @@ public class ImageViewCtrl {
 		update(viewParams.get());
 	}
 
+	/**
+	 * Replaces the current image by a version with different resolution.
+	 * Scale and position are preserved.
+	 */
+	public void replaceImage(Image image) {
+		this.image = image;
+		isLowResolutionReported = false;
+		imageView.setImage(image);
+		update(viewParams.get());
+	}
+
+	/**
+	 * Sets a handler which is called when the user zooms into an image with
+	 * reduced resolution so far that its pixels are magnified.
+	 */
+	public void setOnLowResolution(Runnable handler) {
+		onLowResolution = handler;
+	}
+
 	public ObjectProperty<ViewParams> viewParamsProperty() {
 		return viewParams;
 	}
@@ -167,22 +246,27 @@ public class ImageViewCtrl {
 				isScaleToFitActive = true;
 			}
 			if (enableLimiters || isScaleToFitActive) {
-				if (image.getWidth() / image.getHeight() > container.getWidth() / container.getHeight()) {
-					nextParams.clampImgX(0, image.getWidth() - nextParams.viewToImage(container.getWidth()));
-					double tol = (container.getHeight() - image.getHeight() * scaleFit) / nextParams.getScale() / 2;
-					nextParams.clampImgY(-tol, image.getHeight() - nextParams.viewToImage(container.getHeight()) + tol);
+				if (imageWidth / imageHeight > container.getWidth() / container.getHeight()) {
+					nextParams.clampImgX(0, imageWidth - nextParams.viewToImage(container.getWidth()));
+					double tol = (container.getHeight() - imageHeight * scaleFit) / nextParams.getScale() / 2;
+					nextParams.clampImgY(-tol, imageHeight - nextParams.viewToImage(container.getHeight()) + tol);
 				} else {
-					nextParams.clampImgY(0, image.getHeight() - nextParams.viewToImage(container.getHeight()));
-					double tol = (container.getWidth() - image.getWidth() * scaleFit) / nextParams.getScale() / 2;
-					nextParams.clampImgX(-tol, image.getWidth() - nextParams.viewToImage(container.getWidth()) + tol);
+					nextParams.clampImgY(0, imageHeight - nextParams.viewToImage(container.getHeight()));
+					double tol = (container.getWidth() - imageWidth * scaleFit) / nextParams.getScale() / 2;
+					nextParams.clampImgX(-tol, imageWidth - nextParams.viewToImage(container.getWidth()) + tol);
 				}
 			}
 			viewParams.set(nextParams);
-			imageView.setViewport(new Rectangle2D(nextParams.getImgX(), nextParams.getImgY(), nextParams.viewToImage(container.getWidth()),
-					nextParams.viewToImage(container.getHeight())));
+			imageView.setViewport(computeViewport(nextParams.getImgX(), nextParams.getImgY(),
+					nextParams.viewToImage(container.getWidth()), nextParams.viewToImage(container.getHeight())));
+			double res = image.getWidth() / (isOrientationSwapped() ? imageHeight : imageWidth);
+			if (res < 1 && nextParams.getScale() > res * 1.01 && !isLowResolutionReported && onLowResolution != null) {
+				isLowResolutionReported = true;
+				onLowResolution.run();
+			}
 			if (isWaitingForInitScale) {
 				isWaitingForInitScale = false;
-				zoom(new Point2D(image.getWidth() / 2, image.getHeight() / 2), initScale);
+				zoom(new Point2D(imageWidth / 2, imageHeight / 2), initScale);
 			}
 		}
 	}
@@ -222,7 +306,43 @@ public class ImageViewCtrl {
 		update(vp);
 	}
 
+	private boolean isOrientationSwapped() {
+		return orientation == 6 || orientation == 8;
+	}
+
+	/**
+	 * Rotates the image view around its center and swaps its fit size if
+	 * necessary, so that the rotated view covers the container.
+	 */
+	private void updateRotation() {
+		boolean swap = isOrientationSwapped();
+		imageView.fitWidthProperty().unbind();
+		imageView.fitHeightProperty().unbind();
+		imageView.fitWidthProperty().bind(swap ? container.heightProperty() : container.widthProperty());
+		imageView.fitHeightProperty().bind(swap ? container.widthProperty() : container.heightProperty());
+		imageView.setRotate(orientation == 6 ? 90 : orientation == 8 ? -90 : orientation == 3 ? 180 : 0);
+	}
+
+	/**
+	 * Transforms a rectangle in image coordinates (after rotation) into a
+	 * viewport in pixels of the shown (unrotated) image.
+	 */
+	private Rectangle2D computeViewport(double x, double y, double w, double h) {
+		double rx = image.getWidth() / (isOrientationSwapped() ? imageHeight : imageWidth);
+		double ry = image.getHeight() / (isOrientationSwapped() ? imageWidth : imageHeight);
+		switch (orientation) {
+		case 6:
+			return new Rectangle2D(y * rx, (imageWidth - x - w) * ry, h * rx, w * ry);
+		case 8:
+			return new Rectangle2D((imageHeight - y - h) * rx, x * ry, h * rx, w * ry);
+		case 3:
+			return new Rectangle2D((imageWidth - x - w) * rx, (imageHeight - y - h) * ry, w * rx, h * ry);
+		default:
+			return new Rectangle2D(x * rx, y * ry, w * rx, h * ry);
+		}
+	}
+
 	private double computeScaleToFit() {
-		return Math.min(container.getWidth() / image.getWidth(), container.getHeight() / image.getHeight());
+		return Math.min(container.getWidth() / imageWidth, container.getHeight() / imageHeight);
 	}
 }
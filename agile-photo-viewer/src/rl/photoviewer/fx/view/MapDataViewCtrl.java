@@ -6,7 +6,6 @@ package rl.photoviewer.fx.view;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 import javafx.geometry.Point2D;
 import javafx.scene.image.Image;
@@ -18,12 +17,16 @@ import rl.photoviewer.model.GeoRefPoint;
 import rl.photoviewer.model.IndexedGeoPoint;
 import rl.photoviewer.model.MapData;
 import rl.photoviewer.model.PVModel;
+import rl.photoviewer.model.PhotoClusters;
 import rl.photoviewer.model.PhotoMetadata;
 
 /**
  * Controller which is responsible for handling user events for a map image pane.
  * It strongly cooperates with an {@link ImageViewCtrl} and adds functionality
  * for showing and editing markers representing geo-located images within the map image.
+ * Photo markers are drawn onto a single canvas layer, while reference point markers and
+ * the marker of the current photo are shapes. Optionally, nearby photo markers are
+ * aggregated to cluster markers.
  * 
  * @author Ruediger Lunde
  *
@@ -35,13 +38,21 @@ public class MapDataViewCtrl {
 
 	private Shape currPhotoMarker;
 	private List<Shape> refPointMarkers = new ArrayList<>();
-	private List<Shape> photoMarkers = new ArrayList<>();
+	private PhotoMarkerLayer photoMarkerLayer;
+	private boolean clusteringEnabled = true;
 	private MarkerFactory markerFactory = new MarkerFactory();
+	/** Reusable coordinate arrays for projecting photo positions. */
+	private double[] photoLats = new double[0];
+	private double[] photoLons = new double[0];
+	private double[] photoXs = new double[0];
+	private double[] photoYs = new double[0];
 
 	public void initialize(ImageViewCtrl viewController, PVModel model) {
 		this.imageViewController = viewController;
 		this.model = model;
 
+		photoMarkerLayer = new PhotoMarkerLayer(viewController.getContainer());
+		updateMarkerSprite();
 		viewController.getContainer().setOnMouseClicked(this::onMouseClicked);
 	}
 	
@@ -51,11 +62,23 @@ public class MapDataViewCtrl {
 	
 	public void setMarkerFactory(MarkerFactory factory) {
 		markerFactory = factory;
+		updateMarkerSprite();
 	}
 
 	public double getMaxMarkerSize() {
 		return markerFactory.getMaxMarkerSize();
 	}
+
+	public boolean isClusteringEnabled() {
+		return clusteringEnabled;
+	}
+
+	/** Enables or disables aggregation of nearby photo markers. */
+	public void setClusteringEnabled(boolean b) {
+		clusteringEnabled = b;
+		if (photoMarkerLayer != null)
+			update(null);
+	}
 	
 	
 	/**
@@ -64,10 +87,9 @@ public class MapDataViewCtrl {
 	 */
 	public void setMaxMarkerSize(double size) {
 		markerFactory.setMaxMarkerSize(size);
+		updateMarkerSprite();
 		
 		Pane container = imageViewController.getContainer();
-		while (!photoMarkers.isEmpty())
-			container.getChildren().remove(photoMarkers.remove(photoMarkers.size() - 1));
 		while (!refPointMarkers.isEmpty())
 			container.getChildren().remove(refPointMarkers.remove(refPointMarkers.size() - 1));
 		container.getChildren().remove(currPhotoMarker);
@@ -85,8 +107,6 @@ public class MapDataViewCtrl {
 		MapData mapData = model.getMapData();
 
 		int photoCount = mapData.hasData() ? model.getVisiblePhotoCount() : 0;
-		while (photoCount < photoMarkers.size())
-			container.getChildren().remove(photoMarkers.remove(photoMarkers.size() - 1));
 
 		while (mapData.getRefPoints().size() < refPointMarkers.size())
 			container.getChildren().remove(refPointMarkers.remove(refPointMarkers.size() - 1));
@@ -104,21 +124,19 @@ public class MapDataViewCtrl {
 			refMarker.setLayoutY(posRefMarker.getY());
 		}
 
-		if (photoCount > 0) {
-			while (photoCount > photoMarkers.size()) {
-				Shape photoMarker = markerFactory.createPhotoMarker();
-				photoMarkers.add(photoMarker);
-				container.getChildren().add(photoMarker);
-			}
-
-			int i = 0;
-			for (IndexedGeoPoint geoPoint : model.getVisiblePhotoPositions()) {
-				double[] posPhoto = mapData.latLonToImagePos(geoPoint.getLat(), geoPoint.getLon());
-				Point2D posPhotoMarker = viewParams.imageToView(new Point2D(posPhoto[0], posPhoto[1]));
-				Shape photoMarker = photoMarkers.get(i++);
-				photoMarker.setLayoutX(posPhotoMarker.getX());
-				photoMarker.setLayoutY(posPhotoMarker.getY());
-			}
+		if (photoCount > 0 && clusteringEnabled) {
+			PhotoClusters clusters = mapData.getPhotoClusters(model.getVisiblePhotoPositions(),
+					viewParams.getScale(), getClusterSize());
+			int count = clusters.getClusterCount();
+			ensureCapacity(count);
+			clusters.getPositions(photoXs, photoYs);
+			viewParams.imageToView(photoXs, photoYs, count);
+			photoMarkerLayer.draw(photoXs, photoYs, count, clusters);
+		} else if (photoCount > 0) {
+			int count = projectPhotoPositions(mapData, model.getVisiblePhotoPositions(), viewParams);
+			photoMarkerLayer.draw(photoXs, photoYs, count, null);
+		} else {
+			photoMarkerLayer.clear();
 		}
 		
 		PhotoMetadata currData = model.getSelectedPhotoData();
@@ -149,6 +167,48 @@ public class MapDataViewCtrl {
 		}
 	}
 
+	/** Renders the photo marker of the current marker factory into the sprite. */
+	private void updateMarkerSprite() {
+		if (photoMarkerLayer != null) {
+			photoMarkerLayer.setMarker(markerFactory.createPhotoMarker());
+			photoMarkerLayer.setClusterMarker(markerFactory.createClusterMarker());
+		}
+	}
+
+	/** Photo markers closer than this view distance are aggregated. */
+	private double getClusterSize() {
+		return getMaxMarkerSize() / 2;
+	}
+
+	private void ensureCapacity(int count) {
+		if (photoLats.length < count) {
+			photoLats = new double[count];
+			photoLons = new double[count];
+			photoXs = new double[count];
+			photoYs = new double[count];
+		}
+	}
+
+	/**
+	 * Projects the photo positions into view coordinates. The results are
+	 * stored in <code>photoXs</code> and <code>photoYs</code>.
+	 * 
+	 * @return The number of projected positions.
+	 */
+	private int projectPhotoPositions(MapData mapData, List<? extends IndexedGeoPoint> geoPoints,
+			ViewParams viewParams) {
+		int count = geoPoints.size();
+		ensureCapacity(count);
+		for (int i = 0; i < count; i++) {
+			IndexedGeoPoint geoPoint = geoPoints.get(i);
+			photoLats[i] = geoPoint.getLat();
+			photoLons[i] = geoPoint.getLon();
+		}
+		mapData.latLonToImagePos(photoLats, photoLons, photoXs, photoYs, count);
+		viewParams.imageToView(photoXs, photoYs, count);
+		return count;
+	}
+
     /**
      * Shifts the map so that it covers as much as possible of the view area.
      */
@@ -157,16 +217,18 @@ public class MapDataViewCtrl {
         Image image = imageViewController.getImage();
         ViewParams viewParams = imageViewController.viewParamsProperty().get();
         if (image != null) {
+            double imageWidth = imageViewController.getImageWidth();
+            double imageHeight = imageViewController.getImageHeight();
             double deltaX = 0;
             double deltaY = 0;
             if (viewParams.getImgX() > 0 &&
-                    image.getWidth() - viewParams.getImgX() < container.getWidth() / viewParams.getScale())
-                deltaX = viewParams.getImgX() + container.getWidth() / viewParams.getScale() - image.getWidth();
+                    imageWidth - viewParams.getImgX() < container.getWidth() / viewParams.getScale())
+                deltaX = viewParams.getImgX() + container.getWidth() / viewParams.getScale() - imageWidth;
             if (viewParams.getImgX() < deltaX)
                 deltaX = viewParams.getImgX() - deltaX;
             if (viewParams.getImgY() > 0 &&
-                    image.getHeight() - viewParams.getImgY() < container.getHeight() / viewParams.getScale())
-                deltaY =   viewParams.getImgY() + container.getHeight() / viewParams.getScale() - image.getHeight();
+                    imageHeight - viewParams.getImgY() < container.getHeight() / viewParams.getScale())
+                deltaY =   viewParams.getImgY() + container.getHeight() / viewParams.getScale() - imageHeight;
             if (viewParams.getImgY() < deltaY)
                 deltaY = viewParams.getImgY() - deltaY;
             if (deltaX != 0 || deltaY != 0)
@@ -183,9 +245,14 @@ public class MapDataViewCtrl {
 			Point2D posImg = vp.viewToImage(new Point2D(event.getX(), event.getY()));
 			double radius = vp.viewToImage(getMaxMarkerSize() / 2);
 			double tolerance = radius * TOLERANCE;
-			Set<? extends IndexedGeoPoint> geoPoints = model.getVisiblePhotoPositions();
-			IndexedGeoPoint pt = model.getMapData().findPhotoPositionAt(geoPoints, posImg.getX(), posImg.getY(),
-					radius, tolerance);
+			List<? extends IndexedGeoPoint> geoPoints = model.getVisiblePhotoPositions();
+			IndexedGeoPoint pt;
+			if (clusteringEnabled)
+				pt = model.getMapData().getPhotoClusters(geoPoints, vp.getScale(), getClusterSize())
+						.findPhotoAt(posImg.getX(), posImg.getY(), radius, tolerance);
+			else
+				pt = model.getMapData().findPhotoPositionAt(geoPoints, posImg.getX(), posImg.getY(),
+						radius, tolerance);
 			if (pt != null)
 				model.selectPhotoByMetadata(pt);
 			// e.consume();
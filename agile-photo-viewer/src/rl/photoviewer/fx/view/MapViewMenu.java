@@ -9,6 +9,7 @@ import java.io.File;
 import javafx.event.ActionEvent;
 import javafx.geometry.Point2D;
 import javafx.scene.Node;
+import javafx.scene.control.CheckMenuItem;
 import javafx.scene.control.ContextMenu;
 import javafx.scene.control.MenuItem;
 import javafx.scene.image.Image;
@@ -38,6 +39,7 @@ public class MapViewMenu {
 	MenuItem openMap1Item;
 	MenuItem openMap2Item;
 	MenuItem closeMapItem;
+	CheckMenuItem clusterItem;
 
 	public MapViewMenu(MapDataViewCtrl mapDataViewController,
 			PVModel model) {
@@ -52,10 +54,13 @@ public class MapViewMenu {
 		openMap2Item.setOnAction(e -> model.setMap(map2));
 		closeMapItem = new MenuItem("Close Map");
 		closeMapItem.setOnAction(e -> model.setMap(null));
+		clusterItem = new CheckMenuItem("Cluster Photo Positions");
+		clusterItem.setOnAction(e -> mapDataViewController
+				.setClusteringEnabled(clusterItem.isSelected()));
 
 		menu = new ContextMenu();
 		menu.getItems().addAll(refPointItem, openMap1Item, openMap2Item,
-				closeMapItem);
+				closeMapItem, clusterItem);
 	}
 
 	public void show(ContextMenuEvent event) {
@@ -102,6 +107,7 @@ public class MapViewMenu {
 		openMap1Item.setDisable(map1 == null);
 		openMap2Item.setDisable(map2 == null);
 		closeMapItem.setDisable(image == null);
+		clusterItem.setSelected(mapDataViewController.isClusteringEnabled());
 	}
 
 	private void onRefPointAction(ActionEvent event) {
@@ -51,6 +51,17 @@ public class MarkerFactory {
 		return result;
 	}
 
+	/** Creates the background of markers which represent several photos. */
+	public Shape createClusterMarker() {
+		double size = maxMarkerSize / 6;
+		Circle result = new Circle(size * 1.5);
+		result.setFill(Color.WHITE);
+		result.setManaged(false);
+		result.setEffect(new DropShadow(BlurType.TWO_PASS_BOX, Color.rgb(20,
+				20, 20), size * 0.9, 0, size / 3, size / 3));
+		return result;
+	}
+
 	public Shape createRefPointMarker() {
 		Circle result = new Circle();
 		double radius = maxMarkerSize / 6;
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.photoviewer.fx.view;
+
+import java.awt.Dimension;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.layout.Pane;
+import rl.util.cache.LruCache;
+import rl.util.exceptions.ErrorHandler;
+import rl.util.exceptions.PersistenceException;
+import rl.util.image.ImageFileReader;
+
+/**
+ * Decodes photos in the background and hands them over to a consumer. Only
+ * the most recently requested photo is published. When a new photo is
+ * requested before the previous one is complete, loading of the previous one
+ * is cancelled. So fast paging through a folder never queues up stale
+ * decodes. Additionally, photos which are likely to be requested next can be
+ * prefetched. Prefetching starts as soon as the requested photo is complete.
+ * If an image cache is set, published images are cached and cached images
+ * are neither loaded nor prefetched again. Photos are decoded with a
+ * resolution which is just sufficient for the current size of the view. The
+ * full resolution is loaded on demand when the user zooms in. While a photo
+ * is loading, its embedded EXIF thumbnail is shown as placeholder. Image
+ * size and thumbnail are read by a background thread, so the application
+ * thread never waits for the file system. Images are not rotated, the EXIF
+ * orientation is handed over to the view. All methods must be called on the
+ * JavaFX application thread.
+ *
+ * @author Ruediger Lunde
+ *
+ */
+public class PhotoLoader {
+
+	private ImageViewCtrl viewCtrl;
+	/** File of the image which was published last. */
+	private File currFile;
+	private File pendingFile;
+	/** Most recently requested file, accessed by the header reader. */
+	private volatile File requestedFile;
+	/** EXIF orientation of the requested photo. */
+	private int orientation;
+	private Image pendingImage;
+	/** Files to be prefetched, most important first. */
+	private volatile List<File> prefetchFiles = Collections.emptyList();
+	/**
+	 * Images which are loaded (or being loaded) in advance. Files whose
+	 * header is still being read are mapped to null.
+	 */
+	private HashMap<File, Image> prefetchedImages = new HashMap<>();
+	/** Recently published images (possibly null). */
+	private LruCache<File, Image> imageCache;
+	/** Full resolution sizes of the created images. */
+	private WeakHashMap<Image, Dimension> fullSizes = new WeakHashMap<>();
+	private Image fullResolutionImage;
+	/** Provides embedded thumbnails (possibly null). */
+	private Function<File, byte[]> thumbnailReader;
+	/** File whose thumbnail is currently shown (possibly null). */
+	private File placeholderFile;
+	/** Reads image sizes and thumbnails, one file after the other. */
+	private ExecutorService headerReader = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "PhotoHeaderReader");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public PhotoLoader(ImageViewCtrl viewCtrl) {
+		this.viewCtrl = viewCtrl;
+		viewCtrl.setOnLowResolution(this::loadFullResolution);
+	}
+
+	public void setImageCache(LruCache<File, Image> imageCache) {
+		this.imageCache = imageCache;
+	}
+
+	/**
+	 * Sets a function which provides the embedded thumbnail of a photo (JPEG
+	 * data or null).
+	 */
+	public void setThumbnailReader(Function<File, byte[]> thumbnailReader) {
+		this.thumbnailReader = thumbnailReader;
+	}
+
+	/**
+	 * Starts loading the specified photo. Value null clears the view
+	 * immediately.
+	 * 
+	 * @param orientation
+	 *            EXIF orientation of the photo, 0 if unknown
+	 */
+	public void load(File file, int orientation) {
+		if (file != null && orientation == this.orientation
+				&& (file.equals(pendingFile) || pendingFile == null && file.equals(currFile)))
+			return;
+		cancel();
+		this.orientation = orientation;
+		requestedFile = file;
+		if (file == null) {
+			publish(null, null);
+		} else {
+			Image image = imageCache != null ? imageCache.get(file) : null;
+			if (image == null)
+				image = prefetchedImages.remove(file);
+			pendingFile = file;
+			if (image != null && !image.isError()) {
+				pendingImage = image;
+				if (image.getProgress() >= 1.0)
+					publish(file, image);
+				else
+					readHeader(file); // for the thumbnail
+			} else {
+				readHeader(file);
+			}
+		}
+	}
+
+	/**
+	 * Specifies the photos to be loaded in advance. Prefetched photos which
+	 * are not contained in the list are dropped.
+	 */
+	public void prefetch(List<File> files) {
+		prefetchFiles = new ArrayList<>(files);
+		for (File file : new ArrayList<>(prefetchedImages.keySet())) {
+			if (!prefetchFiles.contains(file)) {
+				Image image = prefetchedImages.remove(file);
+				if (image != null && image.getProgress() < 1.0)
+					image.cancel();
+			}
+		}
+		if (pendingFile == null)
+			startPrefetching();
+	}
+
+	/**
+	 * Drops all loaded images of the specified file, e.g. because the file
+	 * has been modified. If it is shown, it is loaded again with the next
+	 * request.
+	 */
+	public void invalidate(File file) {
+		if (imageCache != null)
+			imageCache.remove(file);
+		Image image = prefetchedImages.remove(file);
+		if (image != null && image.getProgress() < 1.0)
+			image.cancel();
+		if (file.equals(currFile))
+			currFile = null;
+		if (file.equals(pendingFile))
+			cancel();
+	}
+
+	/** Cancels loading of the pending photo, if any. */
+	public void cancel() {
+		if (pendingImage != null)
+			pendingImage.cancel();
+		pendingImage = null;
+		pendingFile = null;
+		if (fullResolutionImage != null)
+			fullResolutionImage.cancel();
+		fullResolutionImage = null;
+	}
+
+	/**
+	 * Loads the current photo in full resolution and replaces the shown image
+	 * when loading is complete.
+	 */
+	private void loadFullResolution() {
+		File file = currFile;
+		if (file == null || pendingFile != null)
+			return;
+		Image image = new Image(file.toURI().toString(), true);
+		fullResolutionImage = image;
+		image.progressProperty().addListener((obs, oldValue, newValue) -> {
+			if (newValue.doubleValue() >= 1.0 && !image.isError() && image == fullResolutionImage) {
+				fullResolutionImage = null;
+				viewCtrl.replaceImage(image);
+			}
+		});
+		image.errorProperty().addListener((obs, oldValue, newValue) -> {
+			if (newValue && image == fullResolutionImage) {
+				fullResolutionImage = null;
+				Exception e = new PersistenceException("Could not read image from file " + file + ".",
+						image.getException());
+				ErrorHandler.getInstance().handleError(e);
+			}
+		});
+	}
+
+	/**
+	 * Reads size and embedded thumbnail of the file in the background. The
+	 * results are handed over to the application thread, where the image is
+	 * created if the file is still needed.
+	 */
+	private void readHeader(File file) {
+		headerReader.execute(() -> {
+			if (!file.equals(requestedFile) && !prefetchFiles.contains(file))
+				return; // outdated
+			Dimension size = null;
+			try {
+				size = ImageFileReader.readSize(file);
+			} catch (IOException e) {
+				// load in full resolution, errors are reported by the image
+			}
+			byte[] thumbnail = thumbnailReader != null && file.equals(requestedFile)
+					? thumbnailReader.apply(file) : null;
+			Dimension s = size;
+			Platform.runLater(() -> onHeaderRead(file, s, thumbnail));
+		});
+	}
+
+	private void onHeaderRead(File file, Dimension size, byte[] thumbnail) {
+		if (file.equals(pendingFile)) {
+			if (pendingImage == null)
+				pendingImage = createImage(file, size);
+			if (pendingImage.getProgress() >= 1.0 && !pendingImage.isError())
+				publish(file, pendingImage);
+			else
+				showPlaceholder(file, pendingImage, thumbnail);
+		} else if (prefetchedImages.containsKey(file) && prefetchedImages.get(file) == null) {
+			prefetchedImages.put(file, createImage(file, size));
+		}
+	}
+
+	/**
+	 * Shows the embedded thumbnail of the photo, scaled to the full size of
+	 * the image which is being loaded.
+	 */
+	private void showPlaceholder(File file, Image image, byte[] data) {
+		Dimension size = fullSizes.get(image);
+		if (data != null && size != null) {
+			Image thumbnail = new Image(new ByteArrayInputStream(data));
+			if (!thumbnail.isError()) {
+				viewCtrl.setImage(thumbnail, size.width, size.height, orientation);
+				placeholderFile = file;
+			}
+		}
+	}
+
+	/**
+	 * Creates an image which is loaded in the background. The resolution is
+	 * reduced by an integer factor if the photo is much larger than the
+	 * view.
+	 */
+	private Image createImage(File file, Dimension size) {
+		Image image;
+		Pane container = viewCtrl.getContainer();
+		int subsampling = size != null
+				? ImageFileReader.computeSubsampling(size.width, size.height, container.getWidth(), container.getHeight())
+				: 1;
+		if (subsampling > 1)
+			image = new Image(file.toURI().toString(), Math.ceil((double) size.width / subsampling),
+					Math.ceil((double) size.height / subsampling), true, true, true);
+		else
+			image = new Image(file.toURI().toString(), true);
+		if (size != null)
+			fullSizes.put(image, size);
+		return addListeners(file, image);
+	}
+
+	/** Publishes the image when loading is complete. */
+	private Image addListeners(File file, Image image) {
+		image.progressProperty().addListener((obs, oldValue, newValue) -> {
+			if (newValue.doubleValue() >= 1.0 && !image.isError())
+				publish(file, image);
+		});
+		image.errorProperty().addListener((obs, oldValue, newValue) -> {
+			if (newValue && image == pendingImage) {
+				Exception e = new PersistenceException("Could not read image from file " + file + ".",
+						image.getException());
+				ErrorHandler.getInstance().handleError(e);
+				publish(file, null);
+			}
+		});
+		return image;
+	}
+
+	private void startPrefetching() {
+		for (File file : prefetchFiles)
+			if (!file.equals(currFile) && !prefetchedImages.containsKey(file)
+					&& (imageCache == null || !imageCache.containsKey(file))) {
+				prefetchedImages.put(file, null);
+				readHeader(file);
+			}
+	}
+
+	private void publish(File file, Image image) {
+		if (image == null || image == pendingImage) {
+			pendingImage = null;
+			pendingFile = null;
+			currFile = file;
+			if (image != null && imageCache != null)
+				imageCache.put(file, image);
+			Dimension size = image != null ? fullSizes.get(image) : null;
+			if (image != null && file.equals(placeholderFile))
+				viewCtrl.replaceImage(image);
+			else if (size != null)
+				viewCtrl.setImage(image, size.width, size.height, orientation);
+			else if (image != null)
+				viewCtrl.setImage(image, image.getWidth(), image.getHeight(), orientation);
+			else
+				viewCtrl.setImage(null);
+			placeholderFile = null;
+			startPrefetching();
+		}
+	}
+}
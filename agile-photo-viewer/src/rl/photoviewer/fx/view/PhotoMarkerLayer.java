@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.photoviewer.fx.view;
+
+import javafx.geometry.Bounds;
+import javafx.geometry.VPos;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.Image;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Shape;
+import javafx.scene.text.Font;
+import javafx.scene.text.TextAlignment;
+import rl.photoviewer.model.PhotoClusters;
+
+/**
+ * Canvas which shows the photo markers of a map. Instead of adding one node
+ * (with its own effect) per photo to the scene graph, a marker is rendered
+ * once into a sprite image, and the sprite is drawn at all marker positions.
+ * So the number of scene graph nodes does not depend on the number of photos.
+ * Clusters of photos are drawn with a second sprite and the number of photos.
+ * All methods must be called on the JavaFX application thread.
+ *
+ * @author Ruediger Lunde
+ *
+ */
+public class PhotoMarkerLayer {
+
+	private Canvas canvas = new Canvas();
+	private Image sprite;
+	/** Position of the marker center within the sprite. */
+	private double spriteCenterX;
+	private double spriteCenterY;
+	private Image clusterSprite;
+	private double clusterSpriteCenterX;
+	private double clusterSpriteCenterY;
+	private Font clusterFont;
+
+	/** Adds the layer on top of all current children of the container. */
+	public PhotoMarkerLayer(Pane container) {
+		canvas.setManaged(false);
+		canvas.setMouseTransparent(true);
+		canvas.widthProperty().bind(container.widthProperty());
+		canvas.heightProperty().bind(container.heightProperty());
+		container.getChildren().add(canvas);
+	}
+
+	/**
+	 * Renders the marker (including its effect) into the sprite which is used
+	 * for all photo positions.
+	 */
+	public void setMarker(Shape marker) {
+		SnapshotParameters params = new SnapshotParameters();
+		params.setFill(Color.TRANSPARENT);
+		Bounds bounds = marker.getBoundsInLocal();
+		sprite = marker.snapshot(params, null);
+		spriteCenterX = -bounds.getMinX();
+		spriteCenterY = -bounds.getMinY();
+	}
+
+	/**
+	 * Renders the background of cluster markers into a sprite. The number of
+	 * photos is printed on top of it.
+	 */
+	public void setClusterMarker(Shape marker) {
+		SnapshotParameters params = new SnapshotParameters();
+		params.setFill(Color.TRANSPARENT);
+		Bounds bounds = marker.getBoundsInLocal();
+		clusterSprite = marker.snapshot(params, null);
+		clusterSpriteCenterX = -bounds.getMinX();
+		clusterSpriteCenterY = -bounds.getMinY();
+		clusterFont = Font.font(marker.getLayoutBounds().getHeight() * 0.5);
+	}
+
+	/**
+	 * Replaces all markers by markers at the specified view positions.
+	 * Positions with NaN coordinates are ignored.
+	 *
+	 * @param clusters
+	 *            Clusters which correspond to the positions or null if each
+	 *            position represents one photo
+	 */
+	public void draw(double[] xs, double[] ys, int count, PhotoClusters clusters) {
+		GraphicsContext gc = canvas.getGraphicsContext2D();
+		double width = canvas.getWidth();
+		double height = canvas.getHeight();
+		gc.clearRect(0, 0, width, height);
+		if (sprite == null)
+			return;
+		double x0 = -sprite.getWidth();
+		double y0 = -sprite.getHeight();
+		if (clusters != null && clusterFont != null) {
+			gc.setFill(Color.rgb(20, 20, 20));
+			gc.setFont(clusterFont);
+			gc.setTextAlign(TextAlignment.CENTER);
+			gc.setTextBaseline(VPos.CENTER);
+		}
+		for (int i = 0; i < count; i++) {
+			if (clusters != null && clusters.getSize(i) > 1 && clusterSprite != null) {
+				double x = xs[i] - clusterSpriteCenterX;
+				double y = ys[i] - clusterSpriteCenterY;
+				if (x > -clusterSprite.getWidth() && x < width && y > -clusterSprite.getHeight() && y < height) {
+					gc.drawImage(clusterSprite, x, y);
+					gc.fillText(Integer.toString(clusters.getSize(i)), xs[i], ys[i]);
+				}
+			} else {
+				double x = xs[i] - spriteCenterX;
+				double y = ys[i] - spriteCenterY;
+				if (x > x0 && x < width && y > y0 && y < height)
+					gc.drawImage(sprite, x, y);
+			}
+		}
+	}
+
+	/** Removes all markers. */
+	public void clear() {
+		draw(null, null, 0, null);
+	}
+}
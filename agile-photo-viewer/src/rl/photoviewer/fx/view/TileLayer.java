@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.photoviewer.fx.view;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import javafx.application.Platform;
+import javafx.geometry.Point2D;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.Pane;
+import rl.util.cache.LruCache;
+import rl.util.exceptions.ErrorHandler;
+import rl.util.exceptions.PersistenceException;
+import rl.util.image.ImageFileReader;
+import rl.util.image.TilePyramid;
+
+/**
+ * Canvas on top of an image view which shows the tiles of a tile pyramid.
+ * Very large images are shown this way, while the image view itself only
+ * shows the overview of the pyramid. Tiles are drawn for the level which fits
+ * best to the current scale, and only visible tiles are loaded. All methods
+ * must be called on the JavaFX application thread.
+ *
+ * @author Ruediger Lunde
+ *
+ */
+public class TileLayer {
+
+	/** Budget of the tile cache in bytes. */
+	private final static long TILE_CACHE_SIZE = 64L * 1024 * 1024;
+
+	private ImageViewCtrl viewCtrl;
+	private Canvas canvas = new Canvas();
+	private TilePyramid pyramid;
+	/** Pyramid which is being built (possibly null). */
+	private TilePyramid pendingPyramid;
+	private LruCache<File, Image> tileCache = new LruCache<>(
+			img -> (long) img.getWidth() * (long) img.getHeight() * 4, TILE_CACHE_SIZE);
+	/** Tiles which are being loaded. */
+	private HashMap<File, Image> pendingTiles = new HashMap<>();
+
+	/**
+	 * Adds the tile layer to the container of the view controller, directly
+	 * above the image view.
+	 */
+	public TileLayer(ImageViewCtrl viewCtrl, ImageView imageView) {
+		this.viewCtrl = viewCtrl;
+		Pane container = viewCtrl.getContainer();
+		canvas.setManaged(false);
+		canvas.setMouseTransparent(true);
+		canvas.widthProperty().bind(container.widthProperty());
+		canvas.heightProperty().bind(container.heightProperty());
+		container.getChildren().add(container.getChildren().indexOf(imageView) + 1, canvas);
+		canvas.widthProperty().addListener(e -> draw());
+		canvas.heightProperty().addListener(e -> draw());
+		viewCtrl.viewParamsProperty().addListener(e -> draw());
+	}
+
+	/**
+	 * Shows the specified image file (possibly null) in the image view. Very
+	 * large images are shown tile by tile. If necessary, the tile pyramid is
+	 * built in the background first.
+	 */
+	public void showImage(File file) {
+		setPyramid(null);
+		Dimension size = null;
+		if (file != null) {
+			try {
+				size = ImageFileReader.readSize(file);
+			} catch (IOException e) {
+				// loading the image will fail as well and report the error
+			}
+		}
+		if (size != null && TilePyramid.isTilingRecommended(size.width, size.height)) {
+			TilePyramid p = new TilePyramid(file, size.width, size.height);
+			pendingPyramid = p;
+			viewCtrl.setImage(null);
+			Thread builder = new Thread(() -> {
+				try {
+					if (!p.isComplete())
+						p.build();
+					Platform.runLater(() -> {
+						if (pendingPyramid == p) {
+							pendingPyramid = null;
+							Image overview = new Image(p.getOverviewFile().toURI().toString());
+							viewCtrl.setImage(overview, p.getWidth(), p.getHeight());
+							setPyramid(p);
+						}
+					});
+				} catch (IOException ex) {
+					Exception e = new PersistenceException("Could not create map tiles for file " + file + ".", ex);
+					Platform.runLater(() -> ErrorHandler.getInstance().handleError(e));
+				}
+			}, "TilePyramidBuilder");
+			builder.setDaemon(true);
+			builder.start();
+		} else {
+			pendingPyramid = null;
+			viewCtrl.setImage(file != null ? new Image(file.toURI().toString()) : null);
+		}
+	}
+
+	/** Sets the pyramid to be shown (possibly null). */
+	private void setPyramid(TilePyramid pyramid) {
+		this.pyramid = pyramid;
+		tileCache.clear();
+		for (Image tile : pendingTiles.values())
+			tile.cancel();
+		pendingTiles.clear();
+		draw();
+	}
+
+	public TilePyramid getPyramid() {
+		return pyramid;
+	}
+
+	private void draw() {
+		GraphicsContext gc = canvas.getGraphicsContext2D();
+		gc.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+		TilePyramid p = pyramid;
+		if (p == null || viewCtrl.getImage() == null)
+			return;
+		ViewParams vp = viewCtrl.viewParamsProperty().get();
+		int level = p.chooseLevel(vp.getScale());
+		int span = p.getTileSpan(level);
+		Point2D min = vp.viewToImage(new Point2D(0, 0));
+		Point2D max = vp.viewToImage(new Point2D(canvas.getWidth(), canvas.getHeight()));
+		int col0 = Math.max(0, (int) Math.floor(min.getX() / span));
+		int col1 = Math.min(p.getColumnCount(level) - 1, (int) Math.floor(max.getX() / span));
+		int row0 = Math.max(0, (int) Math.floor(min.getY() / span));
+		int row1 = Math.min(p.getRowCount(level) - 1, (int) Math.floor(max.getY() / span));
+		Set<File> visible = new HashSet<>();
+		for (int row = row0; row <= row1; row++) {
+			for (int col = col0; col <= col1; col++) {
+				File file = p.getTileFile(level, col, row);
+				visible.add(file);
+				Image tile = tileCache.get(file);
+				if (tile != null) {
+					Point2D p0 = vp.imageToView(new Point2D(col * span, row * span));
+					Point2D p1 = vp.imageToView(new Point2D(Math.min((col + 1) * span, p.getWidth()),
+							Math.min((row + 1) * span, p.getHeight())));
+					gc.drawImage(tile, p0.getX(), p0.getY(), p1.getX() - p0.getX(), p1.getY() - p0.getY());
+				} else if (!pendingTiles.containsKey(file)) {
+					pendingTiles.put(file, loadTile(file));
+				}
+			}
+		}
+		// stop loading tiles which are not visible anymore
+		for (File file : new ArrayList<>(pendingTiles.keySet())) {
+			if (!visible.contains(file))
+				pendingTiles.remove(file).cancel();
+		}
+	}
+
+	private Image loadTile(File file) {
+		Image tile = new Image(file.toURI().toString(), true);
+		tile.progressProperty().addListener((obs, oldValue, newValue) -> {
+			if (newValue.doubleValue() >= 1.0 && !tile.isError() && pendingTiles.get(file) == tile) {
+				pendingTiles.remove(file);
+				tileCache.put(file, tile);
+				draw();
+			}
+		});
+		// tiles with errors remain pending, the overview remains visible there
+		return tile;
+	}
+}
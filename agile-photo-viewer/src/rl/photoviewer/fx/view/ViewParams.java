@@ -87,6 +87,17 @@ public class ViewParams implements Cloneable {
 		return new Point2D(x, y);
 	}
 
+	/**
+	 * Transforms the first <code>count</code> image positions into view
+	 * positions in place.
+	 */
+	public void imageToView(double[] xs, double[] ys, int count) {
+		for (int i = 0; i < count; i++) {
+			xs[i] = (xs[i] - imgX) * scale;
+			ys[i] = (ys[i] - imgY) * scale;
+		}
+	}
+
 	public double imageToView(double distImage) {
 		return distImage * scale;
 	}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.photoviewer.model;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Background thread which provides the metadata of all photos in a directory
+ * batch by batch. Metadata found in the metadata index is delivered first,
+ * the remaining files are scanned in batches of limited size. The thread
+ * never modifies the state of the <code>ExifDataManager</code>, it only hands
+ * over the batches to a consumer.
+ *
+ * @author Ruediger Lunde
+ *
+ */
+class DirectoryLoader extends Thread {
+
+	private final static int BATCH_SIZE = 200;
+
+	private final ExifDataManager manager;
+	private final File dir;
+	private final File knownFile;
+	private final PhotoMetadata knownData;
+	private final BiConsumer<DirectoryLoader, PhotoMetadata[]> batchConsumer;
+	private final Consumer<DirectoryLoader> finishHandler;
+	private volatile boolean cancelled;
+
+	/**
+	 * @param knownFile
+	 *            File whose metadata has already been read (possibly null).
+	 * @param batchConsumer
+	 *            Called in the loader thread for each batch.
+	 * @param finishHandler
+	 *            Called in the loader thread after the last batch unless
+	 *            loading was cancelled.
+	 */
+	DirectoryLoader(ExifDataManager manager, File dir, File knownFile,
+			PhotoMetadata knownData,
+			BiConsumer<DirectoryLoader, PhotoMetadata[]> batchConsumer,
+			Consumer<DirectoryLoader> finishHandler) {
+		super("DirectoryLoader");
+		setDaemon(true);
+		this.manager = manager;
+		this.dir = dir;
+		this.knownFile = knownFile;
+		this.knownData = knownData;
+		this.batchConsumer = batchConsumer;
+		this.finishHandler = finishHandler;
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	/** Returns the file whose metadata was read in advance (possibly null). */
+	public File getKnownFile() {
+		return knownFile;
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	protected ExifDataManager getManager() {
+		return manager;
+	}
+
+	/** Returns the maximal number of files which are scanned in one batch. */
+	protected int getBatchSize() {
+		return BATCH_SIZE;
+	}
+
+	/** Hands over a batch of metadata to the consumer. */
+	private void deliverBatch(PhotoMetadata[] batch) {
+		batchConsumer.accept(this, batch);
+	}
+
+	/** Informs the finish handler that the last batch has been delivered. */
+	protected void notifyFinished() {
+		finishHandler.accept(this);
+	}
+
+	@Override
+	public void run() {
+		File[] files = manager.listFiles(dir);
+		PhotoMetadata[] data = new PhotoMetadata[files.length];
+		List<Integer> unknown = new ArrayList<>();
+		List<PhotoMetadata> indexed = new ArrayList<>();
+		for (int i = 0; i < files.length && !cancelled; i++) {
+			if (files[i].equals(knownFile)) {
+				data[i] = knownData;
+			} else {
+				MetadataIndex.Entry entry = manager.getMetadataIndex().lookup(files[i]);
+				if (entry != null) {
+					data[i] = entry.getData();
+					if (data[i] != null)
+						indexed.add(data[i]);
+				} else {
+					unknown.add(i);
+				}
+			}
+		}
+		if (!indexed.isEmpty() && !cancelled)
+			deliverBatch(indexed.toArray(new PhotoMetadata[0]));
+		for (int start = 0; start < unknown.size() && !cancelled; start += BATCH_SIZE) {
+			int end = Math.min(start + BATCH_SIZE, unknown.size());
+			File[] batchFiles = new File[end - start];
+			for (int i = start; i < end; i++)
+				batchFiles[i - start] = files[unknown.get(i)];
+			PhotoMetadata[] batch = manager.getMetadataScanner().scan(batchFiles);
+			for (int i = start; i < end; i++)
+				data[unknown.get(i)] = batch[i - start];
+			if (!cancelled)
+				deliverBatch(batch);
+		}
+		if (!cancelled) {
+			manager.updateMetadataIndex(dir, files, data);
+			notifyFinished();
+		}
+	}
+}
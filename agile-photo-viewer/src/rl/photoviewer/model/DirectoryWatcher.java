@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.photoviewer.model;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread which watches a directory for created, modified and
+ * deleted files. Events are collected until the directory has been quiet for
+ * a short time or the first event is older than about a second. Files which
+ * are still being written (events within the quiet period) are kept for the
+ * next round. The metadata of the changed files is read in the watcher thread
+ * and handed over to a handler. Like the <code>DirectoryLoader</code>, the
+ * thread never modifies the state of the <code>ExifDataManager</code>.
+ *
+ * @author Ruediger Lunde
+ *
+ */
+class DirectoryWatcher extends Thread {
+
+	/** Time without events after which changes are delivered. */
+	private final static long QUIET_MILLIS = 300;
+	/** Maximal time between the first event and delivery of changes. */
+	private final static long MAX_DELAY_MILLIS = 1000;
+
+	private final ExifDataManager manager;
+	private final File dir;
+	private final ChangeHandler changeHandler;
+	private volatile WatchService watchService;
+	private volatile boolean cancelled;
+
+	/**
+	 * @param changeHandler
+	 *            Called in the watcher thread for each set of changes.
+	 */
+	DirectoryWatcher(ExifDataManager manager, File dir,
+			ChangeHandler changeHandler) {
+		super("DirectoryWatcher");
+		setDaemon(true);
+		this.manager = manager;
+		this.dir = dir;
+		this.changeHandler = changeHandler;
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	public void cancel() {
+		cancelled = true;
+		WatchService ws = watchService;
+		if (ws != null) {
+			try {
+				ws.close();
+			} catch (IOException e) {
+				// thread terminates anyway
+			}
+		}
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public void run() {
+		try (WatchService ws = dir.toPath().getFileSystem().newWatchService()) {
+			watchService = ws;
+			if (cancelled)
+				return;
+			dir.toPath().register(ws, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+			// maps file names to the time of their last event
+			Map<String, Long> pending = new LinkedHashMap<>();
+			boolean overflow = false;
+			long firstEvent = 0;
+			long lastEvent = 0;
+			while (!cancelled) {
+				WatchKey key;
+				if (pending.isEmpty() && !overflow) {
+					key = ws.take();
+				} else {
+					long wait = Math.min(lastEvent + QUIET_MILLIS, firstEvent
+							+ MAX_DELAY_MILLIS) - System.currentTimeMillis();
+					key = wait > 0 ? ws.poll(wait, TimeUnit.MILLISECONDS) : null;
+				}
+				long now = System.currentTimeMillis();
+				if (key != null) {
+					if (pending.isEmpty() && !overflow)
+						firstEvent = now;
+					lastEvent = now;
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == OVERFLOW)
+							overflow = true;
+						else
+							pending.put(((Path) event.context()).toString(), now);
+					}
+					if (!key.reset())
+						break; // directory is not accessible anymore
+				}
+				if (now - lastEvent >= QUIET_MILLIS
+						|| now - firstEvent >= MAX_DELAY_MILLIS) {
+					Set<String> names = new LinkedHashSet<>();
+					Iterator<Map.Entry<String, Long>> iter = pending.entrySet().iterator();
+					while (iter.hasNext()) {
+						Map.Entry<String, Long> entry = iter.next();
+						if (now - entry.getValue() >= QUIET_MILLIS) {
+							names.add(entry.getKey());
+							iter.remove();
+						}
+					}
+					if (overflow) {
+						// events were lost - check all files
+						for (File file : manager.listFiles(dir))
+							names.add(file.getName());
+						names.addAll(manager.getPhotoFileNames());
+						overflow = false;
+					}
+					firstEvent = now;
+					if (!names.isEmpty())
+						deliverChanges(names);
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// watcher has been cancelled
+		} catch (IOException | UnsupportedOperationException e) {
+			// directory cannot be watched (e.g. on some network file systems),
+			// changes are detected when the directory is opened again
+		}
+	}
+
+	/** Reads metadata of existing files and passes it to the handler. */
+	private void deliverChanges(Collection<String> names) {
+		List<File> files = new ArrayList<>();
+		List<String> removed = new ArrayList<>();
+		for (String name : names) {
+			File file = new File(dir, name);
+			if (file.isFile())
+				files.add(file);
+			else
+				removed.add(name);
+		}
+		File[] fileArr = files.toArray(new File[0]);
+		PhotoMetadata[] data = manager.readMetadata(fileArr);
+		for (int i = 0; i < data.length; i++)
+			if (data[i] == null)
+				removed.add(fileArr[i].getName());
+		if (!cancelled) {
+			manager.getMetadataIndex().updateFiles(dir, fileArr, data, removed);
+			changeHandler.accept(this, data, removed);
+		}
+	}
+
+	/** Receives the changes found by a watcher. */
+	interface ChangeHandler {
+		/**
+		 * @param data
+		 *            Metadata of new or modified photos, may contain nulls.
+		 * @param removedFileNames
+		 *            Names of deleted files and of files without photo data.
+		 */
+		void accept(DirectoryWatcher watcher, PhotoMetadata[] data,
+				List<String> removedFileNames);
+	}
+}
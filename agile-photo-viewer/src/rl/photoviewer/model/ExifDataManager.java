@@ -5,16 +5,19 @@
 package rl.photoviewer.model;
 
 import java.io.File;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Set;
 
-import javax.imageio.ImageIO;
-
 import rl.util.exceptions.ErrorHandler;
 import rl.util.exceptions.PersistenceException;
 
@@ -22,13 +25,16 @@ import com.drew.imaging.ImageMetadataReader;
 import com.drew.metadata.Directory;
 import com.drew.metadata.Metadata;
 import com.drew.metadata.Tag;
+import com.drew.metadata.exif.ExifThumbnailDirectory;
 
 /**
  * Tool for collecting EXIF metadata for all photos in a directory. When
  * selecting a new photo, the tool checks whether the directory has changed and
  * updates the maintained metadata if necessary. The tool also provides means to
  * navigate to the previous or next photo in the directory using different
- * sorting criteria (file name or EXIF date).
+ * sorting criteria (file name or EXIF date). In library mode, the current
+ * directory is the root of a directory tree, and file names of photos are
+ * paths relative to the root.
  * 
  * @author Ruediger Lunde
  * 
@@ -36,15 +42,26 @@ import com.drew.metadata.Tag;
 public class ExifDataManager {
 
 	private File currDirectory;
+	private boolean libraryMode;
 	private List<PhotoMetadata> photoDataList = Collections.emptyList();
 	private boolean sortByDate = true;
 	/** Metadata of the currently selected photo. */
 	private PhotoMetadata selectedPhotoData;
 	private int minRating;
 	private KeywordExpression keywordExpression = new KeywordExpression();
-	private HashSet<PhotoMetadata> visiblePhotoData = new HashSet<>();
+	/** Maps keywords and ratings to photo indices, used to evaluate filters. */
+	private KeywordIndex keywordIndex = new KeywordIndex();
+	/** Compiled keyword expression, null after the index has been rebuilt. */
+	private KeywordExpression.Evaluator keywordEvaluator;
+	/** Indices of the visible photos in ascending order. */
+	private int[] visibleIndices = new int[0];
+	/** Metadata of the visible photos in sort order (unmodifiable). */
+	private List<PhotoMetadata> visiblePhotoData = Collections.emptyList();
+	private HashMap<String, PhotoMetadata> photoDataByName = new HashMap<>();
 	private List<String> allKeywords = Collections.emptyList();
 	private List<Integer> keywordCounts = Collections.emptyList();
+	private MetadataScanner scanner = new MetadataScanner();
+	private MetadataIndex metadataIndex = new MetadataIndex();
 
 	/** Flag to enable detailed metadata display on console for selected photos. */
 	private boolean debug = false;
@@ -53,6 +70,30 @@ public class ExifDataManager {
 		debug = b;
 	}
 	
+	/**
+	 * Sets the number of files which are read in parallel when scanning a
+	 * directory (default: number of processors).
+	 */
+	public void setScanThreadCount(int count) {
+		scanner.setThreadCount(count);
+	}
+
+	public int getScanThreadCount() {
+		return scanner.getThreadCount();
+	}
+
+	/**
+	 * Loads the persistent metadata index, which helps to avoid reading
+	 * metadata of unchanged files again.
+	 */
+	public void loadMetadataIndex() {
+		metadataIndex.load();
+	}
+
+	public void saveMetadataIndex() {
+		metadataIndex.save();
+	}
+
 	public void setSortByDate(boolean state) {
 		if (state != sortByDate) {
 			sortByDate = state;
@@ -62,19 +103,207 @@ public class ExifDataManager {
 
 	public void setCurrDirectory(File dir) {
 		selectedPhotoData = null;
-		boolean dirChanged = !dir.equals(currDirectory);
-		if (dirChanged) {
-			List<PhotoMetadata> newPhotoDataList = new ArrayList<>();
-			List<String> newKeywordList = new ArrayList<>();
+		if (!dir.equals(currDirectory)) {
+			File[] files = listFiles(dir);
+			PhotoMetadata[] data = readMetadata(files);
+			updateMetadataIndex(dir, files, data);
+			startDirectory(dir, data);
+		} else {
+			sortPhotoDataList();
+		}
+	}
+
+	/**
+	 * Makes the specified directory the current directory and replaces all
+	 * maintained metadata by the provided data. The visibility filter is
+	 * reset. Metadata of further photos can be added later by calling
+	 * {@link #addMetadata(PhotoMetadata[])}.
+	 * 
+	 * @param data
+	 *            Metadata of photos in the directory, may contain nulls.
+	 */
+	public synchronized void startDirectory(File dir, PhotoMetadata[] data) {
+		if (libraryMode) {
+			// instances are shared with the metadata index
+			for (PhotoMetadata d : photoDataList)
+				d.setLibraryName(null);
+		}
+		currDirectory = dir;
+		libraryMode = false;
+		selectedPhotoData = null;
+		photoDataList = new ArrayList<>();
+		photoDataByName.clear();
+		allKeywords = Collections.emptyList();
+		keywordCounts = Collections.emptyList();
+		minRating = 0;
+		keywordExpression = new KeywordExpression();
+		rebuildKeywordIndex();
+		addMetadata(data);
+	}
+
+	/**
+	 * Makes the specified directory the root of a library. All maintained
+	 * metadata is removed. Metadata of the photos in the directory tree is
+	 * added later by calling {@link #addMetadata(PhotoMetadata[], String[])},
+	 * with file names relative to the root.
+	 */
+	public synchronized void startLibrary(File root) {
+		startDirectory(root, new PhotoMetadata[0]);
+		libraryMode = true;
+	}
+
+	public boolean isLibraryMode() {
+		return libraryMode;
+	}
+
+	/**
+	 * Returns the path of the file relative to the library root, or null if
+	 * library mode is off or the file is not located within the tree.
+	 */
+	public synchronized String getLibraryFileName(File file) {
+		if (libraryMode) {
+			Path root = currDirectory.toPath().toAbsolutePath().normalize();
+			Path path = file.toPath().toAbsolutePath().normalize();
+			if (path.startsWith(root) && !path.equals(root))
+				return root.relativize(path).toString();
+		}
+		return null;
+	}
+
+	/**
+	 * Adds metadata of further photos in the current directory, updates
+	 * keyword counts and visibility, and restores the sort order. Photos which
+	 * are already known are ignored.
+	 * 
+	 * @param data
+	 *            Metadata of photos in the directory, may contain nulls.
+	 * @return The number of added photos.
+	 */
+	public synchronized int addMetadata(PhotoMetadata[] data) {
+		return addMetadata(data, null);
+	}
+
+	/**
+	 * Adds metadata of further photos as described for
+	 * {@link #addMetadata(PhotoMetadata[])}. In library mode, the file names
+	 * relative to the library root are assigned to the metadata, so that
+	 * instances from the metadata index can be used without copying them.
+	 * 
+	 * @param libraryNames
+	 *            Relative file names for each entry of <code>data</code>, null
+	 *            outside of library mode.
+	 */
+	public synchronized int addMetadata(PhotoMetadata[] data,
+			String[] libraryNames) {
+		Hashtable<String, Integer> keywordHash = new Hashtable<>();
+		for (int i = 0; i < allKeywords.size(); i++)
+			keywordHash.put(allKeywords.get(i), keywordCounts.get(i));
+		List<PhotoMetadata> added = new ArrayList<>();
+		for (int j = 0; j < data.length; j++) {
+			PhotoMetadata d = data[j];
+			if (d != null && !photoDataByName.containsKey(libraryNames != null
+					? libraryNames[j] : d.getFileName())) {
+				if (libraryNames != null)
+					d.setLibraryName(libraryNames[j]);
+				photoDataList.add(d);
+				photoDataByName.put(d.getFileName(), d);
+				added.add(d);
+				for (String keyword : d.getKeywords()) {
+					Integer i = keywordHash.get(keyword);
+					i = (i == null) ? 1 : i + 1;
+					keywordHash.put(keyword, i);
+				}
+			}
+		}
+		if (!added.isEmpty()) {
+			List<String> newKeywords = new ArrayList<>(keywordHash.keySet());
+			Collections.sort(newKeywords);
 			List<Integer> newKeywordCounts = new ArrayList<>();
-			collectMetadata(dir, newPhotoDataList, newKeywordList, newKeywordCounts);
-			Collections.sort(newKeywordList);
-			updateStoredMetadata(dir, newPhotoDataList, newKeywordList,
-					newKeywordCounts);
+			for (String keyword : newKeywords)
+				newKeywordCounts.add(keywordHash.get(keyword));
+			allKeywords = newKeywords;
+			keywordCounts = newKeywordCounts;
+			sortPhotoDataList();
 		}
+		return added.size();
+	}
+
+	/**
+	 * Applies changes of files in the current directory. Metadata of known
+	 * photos is replaced by the provided data, unknown photos are added, and
+	 * the photos with the specified names are removed. If the selected photo
+	 * is removed, the next visible photo is selected.
+	 * 
+	 * @param data
+	 *            Metadata of new or modified photos, may contain nulls.
+	 * @param removedFileNames
+	 *            Names of deleted files. Unknown names are ignored.
+	 * @return The names of known photos which have been replaced or removed.
+	 */
+	public synchronized List<String> updateMetadata(PhotoMetadata[] data,
+			Collection<String> removedFileNames) {
+		Set<String> names = new HashSet<>(removedFileNames);
+		HashMap<String, PhotoMetadata> newData = new HashMap<>();
+		for (PhotoMetadata d : data) {
+			if (d != null) {
+				names.add(d.getFileName());
+				newData.put(d.getFileName(), d);
+			}
+		}
+		List<String> result = new ArrayList<>();
+		List<PhotoMetadata> remaining = new ArrayList<>(photoDataList.size()
+				+ newData.size());
+		PhotoMetadata predecessor = null;
+		boolean selectionRemoved = false;
+		for (PhotoMetadata d : photoDataList) {
+			if (names.contains(d.getFileName())) {
+				photoDataByName.remove(d.getFileName());
+				result.add(d.getFileName());
+				if (d == selectedPhotoData)
+					selectionRemoved = true;
+			} else {
+				remaining.add(d);
+				if (!selectionRemoved && selectedPhotoData != null)
+					predecessor = d;
+			}
+		}
+		if (result.isEmpty() && newData.isEmpty())
+			return result;
+		for (PhotoMetadata d : newData.values()) {
+			remaining.add(d);
+			photoDataByName.put(d.getFileName(), d);
+		}
+		photoDataList = remaining;
+		updateKeywordCounts();
 		sortPhotoDataList();
-		if (dirChanged)
-			setVisibility(0, new KeywordExpression());
+		if (selectionRemoved) {
+			selectedPhotoData = newData.get(selectedPhotoData.getFileName());
+			if (selectedPhotoData == null) {
+				selectedPhotoData = predecessor;
+				selectNextPhoto();
+			}
+		}
+		return result;
+	}
+
+	/** Counts the keywords of all photos again. */
+	private void updateKeywordCounts() {
+		HashMap<String, Integer> keywordHash = new HashMap<>();
+		for (PhotoMetadata d : photoDataList)
+			for (String keyword : d.getKeywords())
+				keywordHash.merge(keyword, 1, Integer::sum);
+		List<String> newKeywords = new ArrayList<>(keywordHash.keySet());
+		Collections.sort(newKeywords);
+		List<Integer> newKeywordCounts = new ArrayList<>();
+		for (String keyword : newKeywords)
+			newKeywordCounts.add(keywordHash.get(keyword));
+		allKeywords = newKeywords;
+		keywordCounts = newKeywordCounts;
+	}
+
+	/** Returns the names of all photos in the current directory. */
+	synchronized Set<String> getPhotoFileNames() {
+		return new HashSet<>(photoDataByName.keySet());
 	}
 	
 	private synchronized void sortPhotoDataList() {
@@ -83,19 +312,41 @@ public class ExifDataManager {
 		photoDataList.sort(comp);
 		for (int i = 0; i < photoDataList.size(); i++)
 			photoDataList.get(i).setIndex(i);
+		rebuildKeywordIndex();
+	}
+
+	/**
+	 * Updates the keyword index after the photo list or its order has changed
+	 * and evaluates the visibility filter again.
+	 */
+	private void rebuildKeywordIndex() {
+		keywordIndex.rebuild(photoDataList);
+		keywordEvaluator = null;
+		setVisibility(minRating, keywordExpression);
 	}
 
 	public File getCurrDirectory() {
 		return currDirectory;
 	}
 
-	public void setVisibility(int minRating, KeywordExpression expression) {
+	/**
+	 * Sets the visibility filter. If the expression is the current one, it is
+	 * re-evaluated incrementally.
+	 */
+	public synchronized void setVisibility(int minRating, KeywordExpression expression) {
 		this.minRating = minRating;
 		keywordExpression = expression;
-		visiblePhotoData.clear();
-		for (PhotoMetadata data : photoDataList)
-			if (data.getRating() >= minRating && keywordExpression.checkKeywords(data.getKeywords()))
-				visiblePhotoData.add(data);
+		if (keywordEvaluator != null && keywordEvaluator.getExpression() == expression)
+			keywordEvaluator.update();
+		else
+			keywordEvaluator = expression.compile(keywordIndex);
+		BitSet visible = keywordIndex.getPhotosWithMinRating(minRating);
+		visible.and(keywordEvaluator.getResult());
+		visibleIndices = visible.stream().toArray();
+		List<PhotoMetadata> data = new ArrayList<>(visibleIndices.length);
+		for (int i : visibleIndices)
+			data.add(photoDataList.get(i));
+		visiblePhotoData = Collections.unmodifiableList(data);
 	}
 
 	public int getRatingFilter() {
@@ -119,18 +370,21 @@ public class ExifDataManager {
 	 * which pass the keyword filter.
 	 */
 	public int getVisiblePhotoCount() {
-		return visiblePhotoData.size();
+		return visibleIndices.length;
 	}
 
 	public synchronized List<File> getVisiblePhotos() {
-		List<File> result = new ArrayList<>();
-		for (int i = 0; i < photoDataList.size(); i++)
-			if (visiblePhotoData.contains(photoDataList.get(i)))
-				result.add(getFile(i));
+		List<File> result = new ArrayList<>(visibleIndices.length);
+		for (int i : visibleIndices)
+			result.add(getFile(i));
 		return result;
 	}
 
-	public Set<? extends IndexedGeoPoint> getVisiblePhotoPositions() {
+	/**
+	 * Returns the metadata of the visible photos in sort order. The list is
+	 * not modified when visibility changes later on.
+	 */
+	public List<? extends IndexedGeoPoint> getVisiblePhotoPositions() {
 		return visiblePhotoData;
 	}
 
@@ -154,12 +408,7 @@ public class ExifDataManager {
 	public synchronized File selectNextPhoto() {
 		File result = null;
 		if (getVisiblePhotoCount() > 0) {
-			int currIndex = getSelectedPhotoIndex();
-			int newIndex = currIndex;
-			do {
-				newIndex = (newIndex + 1) % photoDataList.size();
-			} while (newIndex != currIndex
-					&& !visiblePhotoData.contains(photoDataList.get(newIndex)));
+			int newIndex = visibleIndices[getNextVisiblePos(getSelectedPhotoIndex())];
 			selectedPhotoData = photoDataList.get(newIndex);
 			result = getFile(newIndex);
 		} else {
@@ -171,13 +420,7 @@ public class ExifDataManager {
 	public synchronized File selectPreviousPhoto() {
 		File result = null;
 		if (getVisiblePhotoCount() > 0) {
-			int currIndex = getSelectedPhotoIndex();
-			int newIndex = currIndex;
-			do {
-				newIndex = (newIndex - 1 + photoDataList.size())
-						% photoDataList.size();
-			} while (newIndex != currIndex
-					&& !visiblePhotoData.contains(photoDataList.get(newIndex)));
+			int newIndex = visibleIndices[getPreviousVisiblePos(getSelectedPhotoIndex())];
 			selectedPhotoData = photoDataList.get(newIndex);
 			result = getFile(newIndex);
 		} else {
@@ -186,6 +429,75 @@ public class ExifDataManager {
 		return result;
 	}
 
+	/**
+	 * Returns the files of up to <code>nextCount</code> visible photos
+	 * following the selected photo and up to <code>prevCount</code> visible
+	 * photos preceding it in navigation order. The selection is not changed.
+	 * Following photos are listed first, nearest first.
+	 */
+	public synchronized List<File> getNeighbourPhotos(int nextCount, int prevCount) {
+		List<File> result = new ArrayList<>();
+		int count = getVisiblePhotoCount();
+		int currIndex = getSelectedPhotoIndex();
+		if (currIndex == -1 || count < 2)
+			return result;
+		int pos = getNextVisiblePos(currIndex);
+		for (int i = 0; i < nextCount; i++, pos = (pos + 1) % count) {
+			File file = getFile(visibleIndices[pos]);
+			if (visibleIndices[pos] == currIndex || result.contains(file))
+				break;
+			result.add(file);
+		}
+		pos = getPreviousVisiblePos(currIndex);
+		for (int i = 0; i < prevCount; i++, pos = (pos - 1 + count) % count) {
+			File file = getFile(visibleIndices[pos]);
+			if (visibleIndices[pos] == currIndex || result.contains(file))
+				break;
+			result.add(file);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the position (within the visible photos) of the first visible
+	 * photo following the photo with the specified index. Navigation is
+	 * cyclic, index -1 results in the first visible photo.
+	 */
+	private int getNextVisiblePos(int index) {
+		int pos = Arrays.binarySearch(visibleIndices, index);
+		pos = pos >= 0 ? pos + 1 : -pos - 1;
+		return pos % visibleIndices.length;
+	}
+
+	/**
+	 * Returns the position (within the visible photos) of the last visible
+	 * photo preceding the photo with the specified index. Navigation is
+	 * cyclic, index -1 results in the last visible photo.
+	 */
+	private int getPreviousVisiblePos(int index) {
+		int pos = Arrays.binarySearch(visibleIndices, index);
+		pos = pos >= 0 ? pos - 1 : -pos - 2;
+		return (pos + visibleIndices.length) % visibleIndices.length;
+	}
+
+	/**
+	 * Returns the thumbnail which is embedded in the EXIF data of the
+	 * specified file, or null if the file does not contain a thumbnail. Only
+	 * the metadata segments of the file are read.
+	 */
+	public byte[] readThumbnailData(File file) {
+		try {
+			Metadata metadata = ImageMetadataReader.readMetadata(file);
+			ExifThumbnailDirectory dir = metadata
+					.getDirectory(ExifThumbnailDirectory.class);
+			if (dir != null && dir.hasThumbnailData())
+				return dir.getThumbnailData();
+		} catch (Exception ex) { // ImageProcessingException, IOException
+			// no thumbnail available, the caller waits for the photo
+		}
+		return null;
+	}
+
 	/** Might be null! */
 	public PhotoMetadata getSelectedPhotoData() {
 		return selectedPhotoData;
@@ -203,9 +515,10 @@ public class ExifDataManager {
 			if (file != null && file.exists()) {
 				if (file.delete()) {
 					photoDataList.remove(currIndex);
-					visiblePhotoData.remove(selectedPhotoData);
+					photoDataByName.remove(selectedPhotoData.getFileName());
 					for (int i = currIndex; i < photoDataList.size(); i++)
 						photoDataList.get(i).setIndex(i);
+					rebuildKeywordIndex();
 					for (String k : selectedPhotoData.getKeywords()) {
 						int idx = allKeywords.indexOf(k);
 						keywordCounts.set(idx, keywordCounts.get(idx) - 1);
@@ -230,58 +543,57 @@ public class ExifDataManager {
 			return null;
 	}
 
-	private void collectMetadata(File dir, List<PhotoMetadata> newMetadata,
-			List<String> newKeywords, List<Integer> newKeywordCount) {
+	/** Returns the files of the specified directory in a stable order. */
+	File[] listFiles(File dir) {
 		File[] files = dir.listFiles();
-		Hashtable<String, Integer> keywordHash = new Hashtable<>();
-		for (File f : files) {
-			try {
-				Metadata metadata = ImageMetadataReader.readMetadata(f);
-				PhotoMetadata data = new PhotoMetadata(f, metadata);
-				newMetadata.add(data);
-				for (String keyword : data.getKeywords()) {
-					Integer i = keywordHash.get(keyword);
-					i = (i == null) ? 1 : i + 1;
-					keywordHash.put(keyword, i);
-				}
-			} catch (Exception ex) { // ImageProcessingException, IOException
-				if (isImageFormatSupported(f)) {
-					Exception e = new PersistenceException(
-							"Could not read metadata of file " + f.getName()
-									+ ".", ex);
-					ErrorHandler.getInstance().handleWarning(e);
-					newMetadata.add(new PhotoMetadata(f));
-				}
-			}
+		if (files == null)
+			files = new File[0];
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Provides metadata for the specified files. Metadata of unchanged files
+	 * is taken from the metadata index, all other files are scanned. Files
+	 * without photo data are represented by null.
+	 */
+	PhotoMetadata[] readMetadata(File[] files) {
+		PhotoMetadata[] data = new PhotoMetadata[files.length];
+		List<Integer> unknown = new ArrayList<>();
+		for (int i = 0; i < files.length; i++) {
+			MetadataIndex.Entry entry = metadataIndex.lookup(files[i]);
+			if (entry != null)
+				data[i] = entry.getData();
+			else
+				unknown.add(i);
 		}
-		newKeywords.addAll(keywordHash.keySet());
-		Collections.sort(newKeywords);
-		for (String keyword : newKeywords)
-			newKeywordCount.add(keywordHash.get(keyword));
+		if (!unknown.isEmpty()) {
+			File[] unknownFiles = new File[unknown.size()];
+			for (int i = 0; i < unknownFiles.length; i++)
+				unknownFiles[i] = files[unknown.get(i)];
+			PhotoMetadata[] unknownData = scanner.scan(unknownFiles);
+			for (int i = 0; i < unknownData.length; i++)
+				data[unknown.get(i)] = unknownData[i];
+		}
+		return data;
 	}
 
-	private boolean isImageFormatSupported(File file) {
-		String name = file.getName();
-		for (String ext : ImageIO.getReaderFormatNames())
-			if (name.toLowerCase().endsWith("." + ext.toLowerCase()))
-				return true;
-		return false;
+	MetadataIndex getMetadataIndex() {
+		return metadataIndex;
 	}
 
-	private synchronized void updateStoredMetadata(File dir,
-			List<PhotoMetadata> newPhotoDataList, List<String> newKeywordList,
-			List<Integer> newKeywordCount) {
-		currDirectory = dir;
-		photoDataList = newPhotoDataList;
-		allKeywords = newKeywordList;
-		keywordCounts = newKeywordCount;
+	MetadataScanner getMetadataScanner() {
+		return scanner;
+	}
+
+	/** Replaces the index entries for the specified directory. */
+	void updateMetadataIndex(File dir, File[] files, PhotoMetadata[] data) {
+		metadataIndex.update(dir, files, data);
 	}
 
 	private int getIndexInMetadataList(String fileName) {
-		for (int i = 0; i < photoDataList.size(); i++)
-			if (photoDataList.get(i).getFileName().equals(fileName))
-				return i;
-		return -1;
+		PhotoMetadata data = photoDataByName.get(fileName);
+		return data != null ? data.getIndex() : -1;
 	}
 
 	private void printMetadataForDebugging(File file) {
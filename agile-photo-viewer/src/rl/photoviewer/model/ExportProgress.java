@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.photoviewer.model;
+
+/**
+ * Immutable snapshot of the state of an export. Files which were found
+ * complete in the journal of an interrupted export are counted as skipped.
+ *
+ * @author Ruediger Lunde
+ */
+public class ExportProgress {
+
+	private final int fileCount;
+	private final int copiedCount;
+	private final int skippedCount;
+	private final int failedCount;
+	private final int mismatchCount;
+	private final long totalBytes;
+	private final long copiedBytes;
+	private final long elapsedMillis;
+	private final boolean finished;
+	private final boolean cancelled;
+
+	ExportProgress(int fileCount, int copiedCount, int skippedCount,
+			int failedCount, int mismatchCount, long totalBytes, long copiedBytes,
+			long elapsedMillis, boolean finished, boolean cancelled) {
+		this.fileCount = fileCount;
+		this.copiedCount = copiedCount;
+		this.skippedCount = skippedCount;
+		this.failedCount = failedCount;
+		this.mismatchCount = mismatchCount;
+		this.totalBytes = totalBytes;
+		this.copiedBytes = copiedBytes;
+		this.elapsedMillis = elapsedMillis;
+		this.finished = finished;
+		this.cancelled = cancelled;
+	}
+
+	public int getFileCount() {
+		return fileCount;
+	}
+
+	public int getCopiedCount() {
+		return copiedCount;
+	}
+
+	public int getSkippedCount() {
+		return skippedCount;
+	}
+
+	public int getFailedCount() {
+		return failedCount;
+	}
+
+	/**
+	 * Returns the number of failed files whose copy did not match the source.
+	 */
+	public int getMismatchCount() {
+		return mismatchCount;
+	}
+
+	/** Returns the number of files which have been copied or skipped. */
+	public int getDoneCount() {
+		return copiedCount + skippedCount;
+	}
+
+	/** Returns the size of all files to be exported. */
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/** Returns the size of all files copied so far (skipped files excluded). */
+	public long getCopiedBytes() {
+		return copiedBytes;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/** Returns the copy throughput in bytes per second. */
+	public double getThroughput() {
+		return elapsedMillis > 0 ? copiedBytes * 1000.0 / elapsedMillis : 0;
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/** Returns a short description which is suitable for status lines. */
+	public String getStatusText() {
+		if (!finished)
+			return String.format("Exporting %d of %d photo(s), %.1f MB/s ...",
+					getDoneCount() + failedCount, fileCount,
+					getThroughput() / (1024 * 1024));
+		StringBuilder result = new StringBuilder();
+		result.append(getDoneCount());
+		if (getDoneCount() < fileCount)
+			result.append(" out of " + fileCount);
+		result.append(" photo(s) exported");
+		if (failedCount > 0)
+			result.append(", " + failedCount + " failed");
+		if (mismatchCount > 0)
+			result.append(" (" + mismatchCount + " mismatched)");
+		if (cancelled)
+			result.append(", cancelled");
+		result.append(".");
+		return result.toString();
+	}
+}
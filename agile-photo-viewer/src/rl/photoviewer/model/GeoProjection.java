@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.photoviewer.model;
+
+import java.util.List;
+
+/**
+ * Precomputed mapping from latitude/longitude to image positions, derived
+ * from the reference points of a map. With two reference points, x is
+ * interpolated linearly along longitude and y along latitude. With more
+ * points, the three reference points closest to the position span a plane for
+ * each image coordinate. The coefficients of these planes are computed once
+ * per combination of reference points and reused, so projecting a position
+ * does not allocate memory.
+ *
+ * @author Ruediger Lunde
+ */
+class GeoProjection {
+
+	/** Limits the size of the plane table to 64^3 entries. */
+	private static final int MAX_CACHED_REF_POINTS = 64;
+
+	private final int refPointCount;
+	private final double[] lats;
+	private final double[] lons;
+	private final double[] xs;
+	private final double[] ys;
+	/**
+	 * Coefficients c for combinations of reference points, computed on
+	 * demand. Image positions are given by x = c[0] lat + c[1] lon + c[2] and
+	 * y = c[3] lat + c[4] lon + c[5].
+	 */
+	private final double[][] planes;
+
+	GeoProjection(List<GeoRefPoint> refPoints) {
+		refPointCount = refPoints.size();
+		lats = new double[refPointCount];
+		lons = new double[refPointCount];
+		xs = new double[refPointCount];
+		ys = new double[refPointCount];
+		for (int i = 0; i < refPointCount; i++) {
+			GeoRefPoint p = refPoints.get(i);
+			lats[i] = p.getLat();
+			lons[i] = p.getLon();
+			xs[i] = p.getXImage();
+			ys[i] = p.getYImage();
+		}
+		if (refPointCount == 2)
+			planes = new double[][] { computeLinear(0, 1) };
+		else if (refPointCount >= 3 && refPointCount <= MAX_CACHED_REF_POINTS)
+			planes = new double[refPointCount * refPointCount * refPointCount][];
+		else
+			planes = null;
+	}
+
+	/**
+	 * Stores the image position of the specified location in
+	 * <code>result[0]</code> (x) and <code>result[1]</code> (y).
+	 */
+	void project(double lat, double lon, double[] result) {
+		double[] c = getPlane(lat, lon);
+		if (c != null) {
+			result[0] = c[0] * lat + c[1] * lon + c[2];
+			result[1] = c[3] * lat + c[4] * lon + c[5];
+		} else {
+			result[0] = Double.NaN;
+			result[1] = Double.NaN;
+		}
+	}
+
+	/**
+	 * Computes the image positions of <code>count</code> locations. The
+	 * results are stored in the provided arrays.
+	 */
+	void project(double[] lats, double[] lons, double[] xs, double[] ys, int count) {
+		for (int i = 0; i < count; i++) {
+			double lat = lats[i];
+			double lon = lons[i];
+			double[] c = getPlane(lat, lon);
+			if (c != null) {
+				xs[i] = c[0] * lat + c[1] * lon + c[2];
+				ys[i] = c[3] * lat + c[4] * lon + c[5];
+			} else {
+				xs[i] = Double.NaN;
+				ys[i] = Double.NaN;
+			}
+		}
+	}
+
+	/**
+	 * Returns the coefficients which are valid for the specified position
+	 * (null if the position or the reference points are insufficient).
+	 */
+	private double[] getPlane(double lat, double lon) {
+		if (refPointCount < 3)
+			return refPointCount == 2 ? planes[0] : null;
+		// find the three reference points closest to the position, earlier
+		// points win on equal distance
+		int i1 = -1, i2 = -1, i3 = -1;
+		double d1 = Double.MAX_VALUE, d2 = Double.MAX_VALUE, d3 = Double.MAX_VALUE;
+		for (int i = 0; i < refPointCount; i++) {
+			double d = (lats[i] - lat) * (lats[i] - lat) + (lons[i] - lon) * (lons[i] - lon);
+			if (d < d1) {
+				i3 = i2;
+				d3 = d2;
+				i2 = i1;
+				d2 = d1;
+				i1 = i;
+				d1 = d;
+			} else if (d < d2) {
+				i3 = i2;
+				d3 = d2;
+				i2 = i;
+				d2 = d;
+			} else if (d < d3) {
+				i3 = i;
+				d3 = d;
+			}
+		}
+		if (i3 == -1) // position is NaN
+			return null;
+		if (planes == null)
+			return computePlane(i1, i2, i3);
+		int key = (i1 * refPointCount + i2) * refPointCount + i3;
+		double[] result = planes[key];
+		if (result == null) {
+			result = computePlane(i1, i2, i3);
+			planes[key] = result;
+		}
+		return result;
+	}
+
+	private double[] computeLinear(int i1, int i2) {
+		double bx = (xs[i2] - xs[i1]) / (lons[i2] - lons[i1]);
+		double ay = (ys[i2] - ys[i1]) / (lats[i2] - lats[i1]);
+		return new double[] { 0, bx, xs[i1] - bx * lons[i1], ay, 0, ys[i1] - ay * lats[i1] };
+	}
+
+	/**
+	 * Computes the planes through the three reference points for x and y. The
+	 * normal n of a plane is the cross product of two edge vectors in (lat,
+	 * lon, value) space, and the plane satisfies n * v = n * v1.
+	 */
+	private double[] computePlane(int i1, int i2, int i3) {
+		double[] result = new double[6];
+		for (int i = 0; i < 2; i++) {
+			double[] values = (i == 0) ? xs : ys;
+			double a0 = lats[i2] - lats[i1], a1 = lons[i2] - lons[i1], a2 = values[i2] - values[i1];
+			double b0 = lats[i3] - lats[i1], b1 = lons[i3] - lons[i1], b2 = values[i3] - values[i1];
+			double n0 = a1 * b2 - a2 * b1;
+			double n1 = a2 * b0 - a0 * b2;
+			double n2 = a0 * b1 - a1 * b0;
+			double d = lats[i1] * n0 + lons[i1] * n1 + values[i1] * n2;
+			result[3 * i] = -n0 / n2;
+			result[3 * i + 1] = -n1 / n2;
+			result[3 * i + 2] = d / n2;
+		}
+		return result;
+	}
+}
@@ -5,13 +5,17 @@
 package rl.photoviewer.model;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 /**
  * Represents a propositional sentence to control visibility of photos marked
  * with keywords. Keywords are used as symbols. Syntax is restricted to a
  * conjunctive normal form (CNF) which is conjunction of clauses. Clauses are
- * disjunctions of possibly negated symbols.
+ * disjunctions of possibly negated symbols. For whole photo collections, the
+ * expression is evaluated by bit set operations on a {@link KeywordIndex}.
+ * A compiled {@link Evaluator} keeps the intermediate results, so that
+ * typical modifications of the expression can be evaluated incrementally.
  * 
  * @author Ruediger Lunde
  */
@@ -72,6 +76,42 @@ public class KeywordExpression {
 		return true;
 	}
 
+	/**
+	 * Returns the indices of all photos of the index which pass the filter.
+	 * Clauses are evaluated as unions of keyword sets, their conjunction as
+	 * intersection.
+	 */
+	public BitSet evaluate(KeywordIndex index) {
+		return compile(index).getResult();
+	}
+
+	/**
+	 * Evaluates the expression for the photos of the specified index and
+	 * returns an evaluator which can update the result after modifications of
+	 * this expression.
+	 */
+	public Evaluator compile(KeywordIndex index) {
+		return new Evaluator(index);
+	}
+
+	/** Returns the photos which satisfy the clause (all for empty clauses). */
+	private BitSet evaluateClause(List<Literal> literals, KeywordIndex index) {
+		if (literals.isEmpty())
+			return index.getAllPhotos();
+		BitSet result = new BitSet(index.getPhotoCount());
+		for (Literal l : literals) {
+			BitSet photos = index.getPhotos(index.getKeywordId(l.symbol));
+			if (l.isNegated) {
+				BitSet others = index.getAllPhotos();
+				others.andNot(photos);
+				result.or(others);
+			} else {
+				result.or(photos);
+			}
+		}
+		return result;
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (o == null || getClass() != o.getClass())
@@ -108,6 +148,94 @@ public class KeywordExpression {
 	// ///////////////////////////////////////////////////////////////////////
 	// nested classes
 
+	/**
+	 * Maintains the result of the enclosing expression for the photos of a
+	 * keyword index, together with the result of each clause. Adding literals
+	 * to a non-empty clause can only widen the clause, so only photos which
+	 * newly satisfy the clause are checked against the other clauses. Adding
+	 * a clause (or the first literal of a clause) can only narrow the result,
+	 * so the current result is intersected with the new clause. Other
+	 * modifications lead to a complete evaluation. The evaluator becomes
+	 * invalid when the index is rebuilt.
+	 */
+	public class Evaluator {
+		private KeywordIndex index;
+		/** Copies of the clauses as they were evaluated. */
+		private List<List<Literal>> evaluatedClauses = new ArrayList<>();
+		private List<BitSet> clauseResults = new ArrayList<>();
+		private BitSet result;
+
+		private Evaluator(KeywordIndex index) {
+			this.index = index;
+			update();
+		}
+
+		public KeywordExpression getExpression() {
+			return KeywordExpression.this;
+		}
+
+		/**
+		 * Returns the indices of the photos which pass the filter. The result
+		 * is owned by the evaluator and must not be modified.
+		 */
+		public BitSet getResult() {
+			return result;
+		}
+
+		/** Updates the result after the expression has been modified. */
+		public void update() {
+			if (result == null || !isExtensionOfEvaluated()) {
+				evaluatedClauses.clear();
+				clauseResults.clear();
+				result = index.getAllPhotos();
+			}
+			for (int i = 0; i < clauses.size(); i++) {
+				List<Literal> literals = clauses.get(i);
+				if (i == evaluatedClauses.size()) {
+					BitSet clauseResult = evaluateClause(literals, index);
+					result.and(clauseResult);
+					evaluatedClauses.add(new ArrayList<>(literals));
+					clauseResults.add(clauseResult);
+				} else if (literals.size() > evaluatedClauses.get(i).size()) {
+					List<Literal> evaluated = evaluatedClauses.get(i);
+					BitSet clauseResult;
+					if (evaluated.isEmpty()) {
+						clauseResult = evaluateClause(literals, index);
+						result.and(clauseResult);
+					} else {
+						BitSet oldResult = clauseResults.get(i);
+						clauseResult = (BitSet) oldResult.clone();
+						clauseResult.or(evaluateClause(literals.subList(evaluated.size(), literals.size()), index));
+						BitSet candidates = (BitSet) clauseResult.clone();
+						candidates.andNot(oldResult);
+						for (int j = 0; j < clauseResults.size() && !candidates.isEmpty(); j++)
+							if (j != i)
+								candidates.and(clauseResults.get(j));
+						result.or(candidates);
+					}
+					evaluatedClauses.set(i, new ArrayList<>(literals));
+					clauseResults.set(i, clauseResult);
+				}
+			}
+		}
+
+		/**
+		 * Checks whether the expression was only modified by adding literals
+		 * and clauses since the last evaluation.
+		 */
+		private boolean isExtensionOfEvaluated() {
+			if (clauses.size() < evaluatedClauses.size())
+				return false;
+			for (int i = 0; i < evaluatedClauses.size(); i++) {
+				List<Literal> evaluated = evaluatedClauses.get(i);
+				List<Literal> literals = clauses.get(i);
+				if (literals.size() < evaluated.size() || !literals.subList(0, evaluated.size()).equals(evaluated))
+					return false;
+			}
+			return true;
+		}
+	}
+
 	private class Literal {
 		String symbol;
 		boolean isNegated;
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.photoviewer.model;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Inverted index which maps keywords and ratings to sets of photos. Keywords
+ * are interned to integer ids, and for each keyword, a bit set contains the
+ * indices of the photos which are marked with it. This way, visibility
+ * filters can be evaluated by bit set operations instead of comparing the
+ * keyword strings of all photos. The index must be rebuilt whenever the photo
+ * list or its order changes.
+ *
+ * @author Ruediger Lunde
+ */
+public class KeywordIndex {
+
+	private static final BitSet EMPTY = new BitSet();
+
+	private HashMap<String, Integer> keywordIds = new HashMap<>();
+	private List<BitSet> photosByKeyword = new ArrayList<>();
+	private TreeMap<Integer, BitSet> photosByRating = new TreeMap<>();
+	private int photoCount;
+
+	/**
+	 * Replaces the content of the index. Photos are identified by their
+	 * position in the list, which must be equal to their index.
+	 */
+	public void rebuild(List<PhotoMetadata> photoDataList) {
+		keywordIds.clear();
+		photosByKeyword.clear();
+		photosByRating.clear();
+		photoCount = photoDataList.size();
+		for (int i = 0; i < photoCount; i++) {
+			PhotoMetadata data = photoDataList.get(i);
+			for (String keyword : data.getKeywords()) {
+				Integer id = keywordIds.get(keyword);
+				if (id == null) {
+					id = photosByKeyword.size();
+					keywordIds.put(keyword, id);
+					photosByKeyword.add(new BitSet(photoCount));
+				}
+				photosByKeyword.get(id).set(i);
+			}
+			BitSet ratingPhotos = photosByRating.get(data.getRating());
+			if (ratingPhotos == null) {
+				ratingPhotos = new BitSet(photoCount);
+				photosByRating.put(data.getRating(), ratingPhotos);
+			}
+			ratingPhotos.set(i);
+		}
+	}
+
+	public int getPhotoCount() {
+		return photoCount;
+	}
+
+	/** Returns the id of the keyword or -1 if no photo is marked with it. */
+	public int getKeywordId(String keyword) {
+		Integer id = keywordIds.get(keyword);
+		return id != null ? id : -1;
+	}
+
+	/**
+	 * Returns the indices of all photos which are marked with the specified
+	 * keyword. The result is part of the index and must not be modified.
+	 */
+	public BitSet getPhotos(int keywordId) {
+		return keywordId != -1 ? photosByKeyword.get(keywordId) : EMPTY;
+	}
+
+	/** Returns a new set with the indices of all photos. */
+	public BitSet getAllPhotos() {
+		BitSet result = new BitSet(photoCount);
+		result.set(0, photoCount);
+		return result;
+	}
+
+	/**
+	 * Returns a new set with the indices of all photos whose rating is at
+	 * least the specified value.
+	 */
+	public BitSet getPhotosWithMinRating(int minRating) {
+		BitSet result = new BitSet(photoCount);
+		for (Map.Entry<Integer, BitSet> entry : photosByRating.tailMap(minRating).entrySet())
+			result.or(entry.getValue());
+		return result;
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.photoviewer.model;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Background thread which provides the metadata of all photos in a directory
+ * tree. Folders are walked depth-first in name order. Metadata found in the
+ * metadata index is used directly, unknown files of all folders are collected
+ * and scanned in batches, so that the worker threads of the scanner are busy
+ * even if folders contain only a few photos. The index is updated folder by
+ * folder. Metadata objects are delivered together with their file names
+ * relative to the root of the library, so that the manager can use the
+ * objects of the index without copying them. Adding a batch costs the event
+ * thread time proportional to the number of photos which are already known
+ * (sorting, keyword index, visibility). Therefore, batches grow with the
+ * library: a batch contains at least as many photos as all batches before,
+ * and the maximal delay between two batches grows as well. This way, the
+ * total effort stays proportional to the size of the library.
+ *
+ * @author Ruediger Lunde
+ *
+ */
+class LibraryLoader extends DirectoryLoader {
+
+	/** Minimal number of photos which are collected before they are delivered. */
+	private final static int DELIVERY_SIZE = 2000;
+	/**
+	 * Maximal delay between two deliveries while less than ten times
+	 * <code>DELIVERY_SIZE</code> photos have been delivered.
+	 */
+	private final static long MAX_DELIVERY_DELAY_MILLIS = 1000;
+
+	private final BatchConsumer batchConsumer;
+	private List<PhotoMetadata> delivery = new ArrayList<>();
+	/** Relative file names of the collected metadata. */
+	private List<String> deliveryNames = new ArrayList<>();
+	private long lastDelivery;
+	private int deliveredCount;
+	/** Unknown files waiting to be scanned, together with their folders. */
+	private List<Folder> queuedFolders = new ArrayList<>();
+	private List<Integer> queuedSlots = new ArrayList<>();
+
+	/**
+	 * @param batchConsumer
+	 *            Called in the loader thread for each batch.
+	 * @param finishHandler
+	 *            Called in the loader thread after the last batch unless
+	 *            loading was cancelled.
+	 */
+	LibraryLoader(ExifDataManager manager, File root,
+			BatchConsumer batchConsumer,
+			Consumer<DirectoryLoader> finishHandler) {
+		super(manager, root, null, null, null, finishHandler);
+		setName("LibraryLoader");
+		this.batchConsumer = batchConsumer;
+	}
+
+	@Override
+	public void run() {
+		Deque<File> dirs = new ArrayDeque<>();
+		dirs.push(getDirectory());
+		while (!dirs.isEmpty() && !isCancelled()) {
+			Folder folder = new Folder(dirs.pop());
+			List<File> subfolders = new ArrayList<>();
+			for (int i = 0; i < folder.files.length; i++) {
+				File file = folder.files[i];
+				if (file.isDirectory()) {
+					if (!file.isHidden() && !Files.isSymbolicLink(file.toPath()))
+						subfolders.add(file);
+					continue;
+				}
+				MetadataIndex.Entry entry = getManager().getMetadataIndex().lookup(file);
+				if (entry != null) {
+					folder.data[i] = entry.getData();
+					if (folder.data[i] != null)
+						folder.addToDelivery(i);
+				} else {
+					queuedFolders.add(folder);
+					queuedSlots.add(i);
+					folder.unknownCount++;
+				}
+			}
+			// push subfolders in reverse order to process them in name order
+			for (int i = subfolders.size() - 1; i >= 0; i--)
+				dirs.push(subfolders.get(i));
+			if (folder.unknownCount == 0)
+				getManager().updateMetadataIndex(folder.dir, folder.files, folder.data);
+			if (queuedSlots.size() >= getBatchSize())
+				scanQueuedFiles();
+			deliver(false);
+		}
+		if (!isCancelled())
+			scanQueuedFiles();
+		if (!isCancelled()) {
+			deliver(true);
+			notifyFinished();
+		}
+	}
+
+	private void scanQueuedFiles() {
+		File[] files = new File[queuedSlots.size()];
+		for (int i = 0; i < files.length; i++)
+			files[i] = queuedFolders.get(i).files[queuedSlots.get(i)];
+		PhotoMetadata[] batch = getManager().getMetadataScanner().scan(files);
+		for (int i = 0; i < files.length; i++) {
+			Folder folder = queuedFolders.get(i);
+			folder.data[queuedSlots.get(i)] = batch[i];
+			if (batch[i] != null)
+				folder.addToDelivery(queuedSlots.get(i));
+			if (--folder.unknownCount == 0)
+				getManager().updateMetadataIndex(folder.dir, folder.files, folder.data);
+		}
+		queuedFolders.clear();
+		queuedSlots.clear();
+	}
+
+	/**
+	 * Hands over the collected metadata if enough photos are available, if
+	 * the last delivery is too long ago, or if forced. Both limits grow with
+	 * the number of delivered photos.
+	 */
+	private void deliver(boolean force) {
+		long now = System.currentTimeMillis();
+		int minSize = Math.max(DELIVERY_SIZE, deliveredCount);
+		long maxDelay = MAX_DELIVERY_DELAY_MILLIS
+				* (1 + deliveredCount / (10 * DELIVERY_SIZE));
+		if (!delivery.isEmpty() && !isCancelled()
+				&& (force || delivery.size() >= minSize
+						|| now - lastDelivery >= maxDelay)) {
+			batchConsumer.accept(this, delivery.toArray(new PhotoMetadata[0]),
+					deliveryNames.toArray(new String[0]));
+			deliveredCount += delivery.size();
+			delivery.clear();
+			deliveryNames.clear();
+			lastDelivery = now;
+		}
+	}
+
+	/** Files and metadata of one folder of the library. */
+	private class Folder {
+		final File dir;
+		final File[] files;
+		final PhotoMetadata[] data;
+		/** Prefix of the file names relative to the library root. */
+		final String prefix;
+		int unknownCount;
+
+		Folder(File dir) {
+			this.dir = dir;
+			files = getManager().listFiles(dir);
+			data = new PhotoMetadata[files.length];
+			Path relPath = getDirectory().toPath().relativize(dir.toPath());
+			prefix = relPath.toString().isEmpty() ? "" : relPath + File.separator;
+		}
+
+		/** Adds the metadata of the specified file to the next delivery. */
+		void addToDelivery(int i) {
+			delivery.add(data[i]);
+			deliveryNames.add(prefix + files[i].getName());
+		}
+	}
+
+	/** Receives the metadata found by a library loader. */
+	interface BatchConsumer {
+		/**
+		 * @param libraryNames
+		 *            File names relative to the library root, one for each
+		 *            entry of <code>data</code>.
+		 */
+		void accept(LibraryLoader loader, PhotoMetadata[] data,
+				String[] libraryNames);
+	}
+}
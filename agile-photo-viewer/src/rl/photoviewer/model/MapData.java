@@ -6,7 +6,6 @@ package rl.photoviewer.model;
 
 import java.io.File;
 import java.util.List;
-import java.util.Set;
 
 /**
  * Abstraction of the <code>MapDataManager</code> which focuses on read access
@@ -26,10 +25,28 @@ public interface MapData {
 
 	GeoRefPoint findRefPointAt(double xImg, double yImg, double radius);
 
-	IndexedGeoPoint findPhotoPositionAt(Set<? extends IndexedGeoPoint> photoPositions, double xImg, double yImg,
+	IndexedGeoPoint findPhotoPositionAt(List<? extends IndexedGeoPoint> photoPositions, double xImg, double yImg,
 			double radius, double tolerance);
 
+	/**
+	 * Returns clusters of nearby photo positions for the zoom level of the
+	 * specified scale (null if no map data is available).
+	 * 
+	 * @param scale
+	 *            View pixels per image pixel
+	 * @param clusterSize
+	 *            Minimal cell size of the clusters in view pixels
+	 */
+	PhotoClusters getPhotoClusters(List<? extends IndexedGeoPoint> photoPositions, double scale, double clusterSize);
+
 	double[] latLonToImagePos(double lat, double lon);
 
+	/**
+	 * Maps the first <code>count</code> latitude/longitude positions to image
+	 * positions and stores them in the provided arrays. Unknown positions
+	 * (NaN) result in NaN.
+	 */
+	void latLonToImagePos(double[] lats, double[] lons, double[] xs, double[] ys, int count);
+
 	File[] getAllMapFiles();
 }
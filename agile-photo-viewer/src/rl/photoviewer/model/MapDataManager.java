@@ -11,8 +11,8 @@ import rl.util.persistence.PropertyManager;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
 
 /**
  * The <code>MapDataManager</code> maintains all the data which is needed for
@@ -31,9 +31,24 @@ public class MapDataManager implements MapData {
 	private final static int MAX_LOOKUP_SIZE = 20;
 	private MapParams params;
 	private List<MapParams> mapParamLookup = new ArrayList<>();
+	/**
+	 * Spatial index of the photo positions used for the last hit-test.
+	 * Invalidated when the reference points change.
+	 */
+	private PhotoPositionGrid positionGrid;
+	/** Projection for the current reference points, created on demand. */
+	private GeoProjection projection;
+	/** Photo positions which have been projected last (possibly null). */
+	private List<? extends IndexedGeoPoint> projectedPositions;
+	private double[] projectedXs;
+	private double[] projectedYs;
+	/** Clusters of the projected positions by zoom level. */
+	private HashMap<Integer, PhotoClusters> clustersByLevel = new HashMap<>();
+	private double clusterSize;
 
 	public void setMap(File mapFile) {
 		params = null;
+		onRefPointsChanged();
 		if (mapFile != null) {
 			params = lookupMapParams(mapFile);
 			if (params == null) {
@@ -56,6 +71,7 @@ public class MapDataManager implements MapData {
 	}
 
 	public void clearCurrentMap() {
+		onRefPointsChanged();
 		if (params != null) {
 			mapParamLookup.remove(params);
 			params = null;
@@ -83,11 +99,21 @@ public class MapDataManager implements MapData {
 	public void addRefPoint(GeoRefPoint refPoint) {
 		if (params != null)
 			params.refPoints.add(refPoint);
+		onRefPointsChanged();
 	}
 
 	public void removeRefPoint(GeoRefPoint refPoint) {
 		if (params != null)
 			params.refPoints.remove(refPoint);
+		onRefPointsChanged();
+	}
+
+	/** Discards all data which depends on the reference points. */
+	private void onRefPointsChanged() {
+		projection = null;
+		positionGrid = null;
+		projectedPositions = null;
+		clustersByLevel.clear();
 	}
 
 	public List<GeoRefPoint> getRefPoints() {
@@ -112,104 +138,96 @@ public class MapDataManager implements MapData {
 		return result;
 	}
 
-	public IndexedGeoPoint findPhotoPositionAt(Set<? extends IndexedGeoPoint> photoPositions, double xImg, double yImg,
+	/**
+	 * Returns the photo next to the specified image position. Photo positions
+	 * are projected once and stored in a grid, which is reused as long as the
+	 * same list of photo positions is provided, the reference points are not
+	 * changed, and the search range does not change significantly.
+	 */
+	public IndexedGeoPoint findPhotoPositionAt(List<? extends IndexedGeoPoint> photoPositions, double xImg, double yImg,
 			double radius, double tolerance) {
-		double nextDist = Double.MAX_VALUE;
-		IndexedGeoPoint result = null;
-		if (hasData()) {
-			for (IndexedGeoPoint pt : photoPositions) {
-				if (Double.isNaN(pt.getLat()))
-					continue;
-				double[] ptImg = latLonToImagePos(pt.getLat(), pt.getLon());
-				double dist = distance(ptImg[0], ptImg[1], xImg, yImg);
-				if (dist < nextDist)
-					nextDist = dist;
-			}
+		if (!hasData())
+			return null;
+		PhotoPositionGrid grid = positionGrid;
+		if (grid == null || grid.getPhotoPositions() != photoPositions || !grid.isSuitable(radius + tolerance)) {
+			projectPhotoPositions(photoPositions);
+			grid = new PhotoPositionGrid(photoPositions, projectedXs, projectedYs, radius + tolerance);
+			positionGrid = grid;
 		}
-		if (nextDist <= radius) {
-			// get first photo of a bunch of photos at almost same distance.
-			for (IndexedGeoPoint pt : photoPositions) {
-				if (Double.isNaN(pt.getLat()))
-					continue;
-				double[] ptImg = latLonToImagePos(pt.getLat(), pt.getLon());
-				double dist = distance(ptImg[0], ptImg[1], xImg, yImg);
-				if (dist <= nextDist + tolerance && (result == null || pt.getIndex() < result.getIndex()))
-					result = pt;
-			}
+		return grid.findPhotoPositionAt(xImg, yImg, radius, tolerance);
+	}
+
+	/**
+	 * Returns clusters of the photo positions for the zoom level of the
+	 * specified scale. Zoom levels differ by factor two. Within a level, cells
+	 * have a view size between <code>clusterSize</code> and twice that size.
+	 * Clusters are cached per zoom level as long as the same list of photo
+	 * positions and the same cluster size are provided and the reference
+	 * points are not changed.
+	 */
+	public PhotoClusters getPhotoClusters(List<? extends IndexedGeoPoint> photoPositions, double scale,
+			double clusterSize) {
+		if (!hasData())
+			return null;
+		if (photoPositions != projectedPositions || clusterSize != this.clusterSize) {
+			projectPhotoPositions(photoPositions);
+			clustersByLevel.clear();
+			this.clusterSize = clusterSize;
+		}
+		int level = (int) Math.floor(Math.log(scale) / Math.log(2));
+		PhotoClusters result = clustersByLevel.get(level);
+		if (result == null) {
+			result = new PhotoClusters(photoPositions, projectedXs, projectedYs, clusterSize / Math.pow(2, level));
+			clustersByLevel.put(level, result);
 		}
 		return result;
 	}
 
-	public double[] latLonToImagePos(final double lat, final double lon) {
-		GeoRefPoint p1 = params.refPoints.get(0);
-		GeoRefPoint p2 = params.refPoints.get(1);
-		GeoRefPoint p3;
-		if (params.refPoints.size() == 2)
-			return convertWith2Samples(lat, lon, p1, p2);
-		else if (params.refPoints.size() == 3) {
-			p3 = params.refPoints.get(2);
-			return convertWith3Samples(lat, lon, p1, p2, p3);
-		} else { // find points closest to lat lon position
-			List<GeoRefPoint> points = new ArrayList<>(params.refPoints);
-			points.sort((o1, o2) -> {
-				double[] dist = new double[2];
-				for (int i = 0; i < 2; i++) {
-					GeoRefPoint o = (i == 0) ? o1 : o2;
-					dist[i] = (o.getLat() - lat) * (o.getLat() - lat) + (o.getLon() - lon) * (o.getLon() - lon);
-				}
-				return Double.compare(dist[0], dist[1]);
-			});
-			p1 = points.get(0);
-			p2 = points.get(1);
-			p3 = points.get(2);
-			return convertWith3Samples(lat, lon, p1, p2, p3);
+	/** Computes the image positions of the photos if necessary. */
+	private void projectPhotoPositions(List<? extends IndexedGeoPoint> photoPositions) {
+		if (photoPositions != projectedPositions) {
+			int count = photoPositions.size();
+			double[] lats = new double[count];
+			double[] lons = new double[count];
+			for (int i = 0; i < count; i++) {
+				lats[i] = photoPositions.get(i).getLat();
+				lons[i] = photoPositions.get(i).getLon();
+			}
+			projectedXs = new double[count];
+			projectedYs = new double[count];
+			latLonToImagePos(lats, lons, projectedXs, projectedYs, count);
+			projectedPositions = photoPositions;
+			clustersByLevel.clear();
 		}
 	}
 
-	private double distance(double x1, double y1, double x2, double y2) {
-		return Math.sqrt((x2 - x1) * (x2 - x1) + (y2 - y1) * (y2 - y1));
+	/**
+	 * Maps a latitude/longitude position to an image position. With more
+	 * than two reference points, the three points closest to the position are
+	 * used. The projection is precomputed when the reference points change.
+	 */
+	public double[] latLonToImagePos(double lat, double lon) {
+		double[] result = new double[2];
+		getProjection().project(lat, lon, result);
+		return result;
 	}
 
-	private double[] convertWith2Samples(double lat, double lon, GeoRefPoint p1, GeoRefPoint p2) {
-		double xImage = (lon - p1.getLon()) / (p2.getLon() - p1.getLon()) * (p2.getXImage() - p1.getXImage())
-				+ p1.getXImage();
-		double yImage = (lat - p1.getLat()) / (p2.getLat() - p1.getLat()) * (p2.getYImage() - p1.getYImage())
-				+ p1.getYImage();
-		return new double[] { xImage, yImage };
+	public void latLonToImagePos(double[] lats, double[] lons, double[] xs, double[] ys, int count) {
+		getProjection().project(lats, lons, xs, ys, count);
 	}
 
-	private double[] convertWith3Samples(double lat, double lon, GeoRefPoint p1, GeoRefPoint p2, GeoRefPoint p3) {
-		double[] result = new double[2];
-		for (int i = 0; i < 2; i++) {
-			double[] v1 = new double[] { p1.getLat(), p1.getLon(), (i == 0) ? p1.getXImage() : p1.getYImage() };
-			double[] v2 = new double[] { p2.getLat(), p2.getLon(), (i == 0) ? p2.getXImage() : p2.getYImage() };
-			double[] v3 = new double[] { p3.getLat(), p3.getLon(), (i == 0) ? p3.getXImage() : p3.getYImage() };
-			double[] a = new double[3];
-			for (int j = 0; j < 3; j++)
-				a[j] = v2[j] - v1[j];
-			double[] b = new double[3];
-			for (int j = 0; j < 3; j++)
-				b[j] = v3[j] - v1[j];
-			double[] n = new double[] { a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2],
-					a[0] * b[1] - a[1] * b[0] };
-			double d = 0;
-			for (int j = 0; j < 3; j++)
-				d += v1[j] * n[j];
-			// n * x = d
-			result[i] = (d - n[0] * lat - n[1] * lon) / n[2];
+	private GeoProjection getProjection() {
+		GeoProjection result = projection;
+		if (result == null) {
+			result = new GeoProjection(getRefPoints());
+			projection = result;
 		}
 		return result;
 	}
 
-	// public static void main(String[] args) {
-	// MapDataManager m = new MapDataManager();
-	// GeoRefPoint p1 = new GeoRefPoint(1, 0, 0, 0);
-	// GeoRefPoint p2 = new GeoRefPoint(2, 0, 5, 0);
-	// GeoRefPoint p3 = new GeoRefPoint(1, 0, 0, 5);
-	// double[] result = m.convertWith3Samples(10, 0, p1, p2, p3);
-	// System.out.println(result[0] + " " + result[1]);
-	//
-	// }
+	private double distance(double x1, double y1, double x2, double y2) {
+		return Math.sqrt((x2 - x1) * (x2 - x1) + (y2 - y1) * (y2 - y1));
+	}
 
 	public void saveMapParamLookup() {
 		try {
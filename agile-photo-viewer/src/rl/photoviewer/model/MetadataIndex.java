@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.photoviewer.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import rl.util.exceptions.ErrorHandler;
+import rl.util.exceptions.PersistenceException;
+import rl.util.persistence.PropertyManager;
+
+/**
+ * Persistent lookup table for photo metadata. Entries are keyed by file path
+ * and are only valid as long as size and last-modified time of the file have
+ * not changed. Reopening a known directory therefore only requires metadata
+ * reading for new or changed files. Files without photo data are indexed too,
+ * so that they are not examined again. The index is stored next to the map
+ * parameter lookup in the application data directory. If it grows too large,
+ * the least recently used directories are dropped.
+ *
+ * @author Ruediger Lunde
+ *
+ */
+public class MetadataIndex {
+
+	private static final String METADATA_INDEX_FILE_NAME = "MetadataIndex.ser";
+
+	/** Maximal number of files in the index. */
+	private final static int MAX_INDEX_SIZE = 400000;
+
+	/** Maps directory paths to file entries, least recently used first. */
+	private LinkedHashMap<String, HashMap<String, Entry>> directories = new LinkedHashMap<>(
+			16, 0.75f, true);
+	private int size;
+	private boolean modified;
+
+	/**
+	 * Returns the index entry for the specified file or null if the file is
+	 * unknown or has changed since it was indexed.
+	 */
+	public synchronized Entry lookup(File file) {
+		HashMap<String, Entry> entries = directories.get(file.getParent());
+		if (entries != null) {
+			Entry entry = entries.get(file.getName());
+			if (entry != null && entry.size == file.length()
+					&& entry.lastModified == file.lastModified())
+				return entry;
+		}
+		return null;
+	}
+
+	/**
+	 * Replaces all entries of the specified directory.
+	 *
+	 * @param data
+	 *            Metadata for each file, null for files without photo data.
+	 */
+	public synchronized void update(File dir, File[] files, PhotoMetadata[] data) {
+		HashMap<String, Entry> entries = new HashMap<>();
+		for (int i = 0; i < files.length; i++)
+			entries.put(files[i].getName(), new Entry(files[i], data[i]));
+		HashMap<String, Entry> old = directories.put(dir.getPath(), entries);
+		size += entries.size() - (old != null ? old.size() : 0);
+		Iterator<HashMap<String, Entry>> iter = directories.values().iterator();
+		while (size > MAX_INDEX_SIZE && directories.size() > 1) {
+			size -= iter.next().size();
+			iter.remove();
+		}
+		modified = true;
+	}
+
+	/**
+	 * Updates the entries of single files in an indexed directory. Nothing
+	 * happens if the directory is not indexed.
+	 *
+	 * @param data
+	 *            Metadata for each file, null for files without photo data.
+	 * @param removedFileNames
+	 *            Names of files whose entries are removed.
+	 */
+	public synchronized void updateFiles(File dir, File[] files,
+			PhotoMetadata[] data, Collection<String> removedFileNames) {
+		HashMap<String, Entry> entries = directories.get(dir.getPath());
+		if (entries != null) {
+			for (String name : removedFileNames)
+				if (entries.remove(name) != null)
+					size--;
+			for (int i = 0; i < files.length; i++)
+				if (entries.put(files[i].getName(), new Entry(files[i], data[i])) == null)
+					size++;
+			modified = true;
+		}
+	}
+
+	public synchronized void save() {
+		if (!modified)
+			return;
+		File file = PropertyManager.getInstance().getPropertyFile(METADATA_INDEX_FILE_NAME);
+		try (ObjectOutputStream oos = new ObjectOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)))) {
+			oos.writeObject(directories);
+			modified = false;
+		} catch (Exception e) {
+			ErrorHandler.getInstance().handleError(e);
+		}
+	}
+
+	public synchronized void load() {
+		File file = PropertyManager.getInstance().getPropertyFile(METADATA_INDEX_FILE_NAME);
+		if (file.exists())
+			try (ObjectInputStream ois = new ObjectInputStream(
+					new BufferedInputStream(new FileInputStream(file)))) {
+				@SuppressWarnings("unchecked")
+				LinkedHashMap<String, HashMap<String, Entry>> dirs = (LinkedHashMap<String, HashMap<String, Entry>>) ois
+						.readObject();
+				directories = dirs;
+				size = 0;
+				for (Map<String, Entry> entries : directories.values())
+					size += entries.size();
+				modified = false;
+			} catch (Exception ex) {
+				// outdated or damaged index - start with an empty one
+				Exception e = new PersistenceException(
+						"Could not read metadata index from file " + file + ".", ex);
+				ErrorHandler.getInstance().handleWarning(e);
+			}
+	}
+
+	public static class Entry implements Serializable {
+		private static final long serialVersionUID = 1L;
+		long size;
+		long lastModified;
+		PhotoMetadata data; // null for files without photo data
+
+		Entry(File file, PhotoMetadata data) {
+			size = file.length();
+			lastModified = file.lastModified();
+			this.data = data;
+		}
+
+		/** Returns null for files without photo data. */
+		public PhotoMetadata getData() {
+			return data;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.photoviewer.model;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import rl.util.exceptions.ErrorHandler;
+import rl.util.exceptions.PersistenceException;
+
+import com.drew.imaging.ImageMetadataReader;
+import com.drew.metadata.Metadata;
+
+/**
+ * Reads EXIF metadata for a collection of files using a bounded pool of worker
+ * threads. Each worker writes into its own result slots, so no locking is
+ * needed, and results are returned in the order of the provided files. The
+ * outcome therefore does not depend on the number of workers.
+ *
+ * @author Ruediger Lunde
+ *
+ */
+public class MetadataScanner {
+
+	private int threadCount = Runtime.getRuntime().availableProcessors();
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * Sets the maximal number of files which are read in parallel. The default
+	 * is the number of available processors. Value 1 results in a serial scan,
+	 * which can be faster on slow spinning disks.
+	 */
+	public void setThreadCount(int count) {
+		threadCount = Math.max(1, count);
+	}
+
+	/**
+	 * Reads the metadata of the specified files. For files which are not
+	 * readable by the metadata reader, the result contains a
+	 * <code>PhotoMetadata</code> object without EXIF data if the image format
+	 * is supported and null otherwise. Warnings are reported by the calling
+	 * thread in file order.
+	 */
+	public PhotoMetadata[] scan(File[] files) {
+		PhotoMetadata[] result = new PhotoMetadata[files.length];
+		Exception[] errors = new Exception[files.length];
+		int workers = Math.min(threadCount, files.length);
+		if (workers <= 1) {
+			for (int i = 0; i < files.length; i++)
+				read(files, i, result, errors);
+		} else {
+			AtomicInteger next = new AtomicInteger();
+			List<Callable<Object>> tasks = new ArrayList<>();
+			for (int w = 0; w < workers; w++) {
+				tasks.add(() -> {
+					int i;
+					while ((i = next.getAndIncrement()) < files.length)
+						read(files, i, result, errors);
+					return null;
+				});
+			}
+			ExecutorService executor = Executors.newFixedThreadPool(workers, r -> {
+				Thread thread = new Thread(r, "MetadataScanner");
+				thread.setDaemon(true);
+				return thread;
+			});
+			try {
+				executor.invokeAll(tasks);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				executor.shutdown();
+			}
+		}
+		String[] formats = ImageIO.getReaderFormatNames();
+		for (int i = 0; i < files.length; i++) {
+			if (errors[i] != null && isImageFormatSupported(files[i], formats)) {
+				Exception e = new PersistenceException(
+						"Could not read metadata of file " + files[i].getName()
+								+ ".", errors[i]);
+				ErrorHandler.getInstance().handleWarning(e);
+				result[i] = new PhotoMetadata(files[i]);
+			}
+		}
+		return result;
+	}
+
+	private void read(File[] files, int i, PhotoMetadata[] result,
+			Exception[] errors) {
+		try {
+			Metadata metadata = ImageMetadataReader.readMetadata(files[i]);
+			result[i] = new PhotoMetadata(files[i], metadata);
+		} catch (Exception ex) { // ImageProcessingException, IOException
+			errors[i] = ex;
+		}
+	}
+
+	private boolean isImageFormatSupported(File file, String[] formats) {
+		String name = file.getName().toLowerCase();
+		for (String ext : formats)
+			if (name.endsWith("." + ext.toLowerCase()))
+				return true;
+		return false;
+	}
+}
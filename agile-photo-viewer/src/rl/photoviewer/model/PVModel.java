@@ -7,8 +7,13 @@ package rl.photoviewer.model;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
+
+import rl.util.exceptions.ErrorHandler;
 
 /**
  * Facade which provides access to the complete state of the photo viewer. The
@@ -21,16 +26,46 @@ import java.util.Set;
  */
 public class PVModel {
 
+	/**
+	 * Property name for changes of the photo collection. If photos were
+	 * modified or deleted on disk, the new value is the list of affected
+	 * files, so that views can drop cached images.
+	 */
 	public final static String CURR_METADATA_PROP = "CurrentMetadata";
 	public final static String CURR_PHOTO_PROP = "CurrentPhoto";
 	public final static String VISIBILITY_PROP = "Visibility";
 	public final static String MAP_PROP = "Map";
 	public final static String MAP_DATA_PROP = "MapData";
+	public final static String EXPORT_PROP = "Export";
 	
 	private ExifDataManager exifDataManager;
 	private MapDataManager mapDataManager;
 
 	private PropertyChangeSupport pcs = new PropertyChangeSupport(this);
+	private Executor eventExecutor = Runnable::run;
+	private boolean streamingEnabled;
+	/**
+	 * Reads metadata of the current directory (or of the library) in the
+	 * background.
+	 */
+	private DirectoryLoader directoryLoader;
+	/** Applies file changes in the current directory. */
+	private DirectoryWatcher directoryWatcher;
+	/**
+	 * Names of files which the watcher reported as deleted while the
+	 * directory was still loading. The loader may have read them before, so
+	 * they are dropped from its batches.
+	 */
+	private Set<String> removedWhileLoading = new HashSet<>();
+	/** Exporter which is currently running (possibly null). */
+	private PhotoExporter exporter;
+	private ExportProgress exportProgress;
+	private int exportThreadCount = 2;
+	private boolean exportChecksumEnabled = true;
+	private int exportMaxEdge = 1600;
+	private float exportQuality = 0.85f;
+	private int prefetchNextCount = 2;
+	private int prefetchPrevCount = 1;
 
 	public PVModel() {
 		exifDataManager = new ExifDataManager();
@@ -50,6 +85,11 @@ public class PVModel {
 	 * @return Value true if current directory has changed.
 	 */
 	public boolean selectPhoto(File file) {
+		String libraryFileName = exifDataManager.getLibraryFileName(file);
+		if (libraryFileName != null && !file.isDirectory()) {
+			selectLibraryPhoto(file, libraryFileName);
+			return false;
+		}
 		boolean result = false;
 		File dir = file;
 		String fileName = null;
@@ -57,20 +97,213 @@ public class PVModel {
 			dir = file.getParentFile();
 			fileName = file.getName();
 		}
-		if (getCurrDirectory() != null && !dir.equals(getCurrDirectory())) {
+		boolean dirChanged = !dir.equals(getCurrDirectory());
+		if (getCurrDirectory() != null && dirChanged) {
 			setMap(null);
 			result = true;
 		}
-		exifDataManager.setCurrDirectory(dir);
-		if (fileName != null)
-			exifDataManager.selectPhoto(fileName);
-		else if (exifDataManager.getVisiblePhotoCount() > 0)
-			exifDataManager.selectFirstPhoto();
+		if (dirChanged) {
+			cancelDirectoryLoader();
+			startDirectoryWatcher(dir);
+		}
+		if (dirChanged && streamingEnabled) {
+			openDirectory(dir, fileName);
+		} else {
+			exifDataManager.setCurrDirectory(dir);
+			if (fileName != null) {
+				if (exifDataManager.selectPhoto(fileName) == null
+						&& directoryLoader != null) {
+					// directory is still loading - read selected photo now
+					exifDataManager.addMetadata(exifDataManager
+							.readMetadata(new File[] { file }));
+					exifDataManager.selectPhoto(fileName);
+				}
+			} else if (exifDataManager.getVisiblePhotoCount() > 0)
+				exifDataManager.selectFirstPhoto();
+		}
 		pcs.firePropertyChange(CURR_METADATA_PROP, null, null);
 		pcs.firePropertyChange(CURR_PHOTO_PROP, null, null);
 		return result;
 	}
 
+	/**
+	 * Opens the specified directory tree as library. Metadata of all photos
+	 * in the tree is read in the background and added batch by batch, as
+	 * described for {@link #setStreamingEnabled(boolean)}. Navigation,
+	 * filtering and map markers then cover the whole library. Selecting a
+	 * photo outside of the tree ends library mode.
+	 */
+	public void openLibrary(File root) {
+		root = root.getAbsoluteFile();
+		if (getCurrDirectory() != null)
+			setMap(null);
+		cancelDirectoryLoader();
+		stopDirectoryWatcher();
+		exifDataManager.startLibrary(root);
+		directoryLoader = new LibraryLoader(exifDataManager, root,
+				(loader, batch, names) -> eventExecutor.execute(() -> onBatchLoaded(loader, batch, names)),
+				loader -> eventExecutor.execute(() -> onLoadingFinished(loader)));
+		directoryLoader.start();
+		pcs.firePropertyChange(CURR_METADATA_PROP, null, null);
+		pcs.firePropertyChange(CURR_PHOTO_PROP, null, null);
+	}
+
+	/** Indicates whether the current directory is the root of a library. */
+	public boolean isLibraryMode() {
+		return exifDataManager.isLibraryMode();
+	}
+
+	private void selectLibraryPhoto(File file, String libraryFileName) {
+		if (exifDataManager.selectPhoto(libraryFileName) == null
+				&& directoryLoader != null) {
+			// library is still loading - read selected photo now
+			PhotoMetadata[] data = exifDataManager
+					.readMetadata(new File[] { file });
+			if (data[0] != null) {
+				exifDataManager.addMetadata(data,
+						new String[] { libraryFileName });
+				exifDataManager.selectPhoto(libraryFileName);
+			}
+		}
+		pcs.firePropertyChange(CURR_METADATA_PROP, null, null);
+		pcs.firePropertyChange(CURR_PHOTO_PROP, null, null);
+	}
+
+	/**
+	 * Enables or disables progressive opening of directories. If enabled, a
+	 * newly selected directory is opened with the metadata of the selected
+	 * photo only. Metadata of all other photos is read in the background and
+	 * added batch by batch. Listeners are informed about each batch by a
+	 * {@link #CURR_METADATA_PROP} event, which is delivered by the event
+	 * executor.
+	 */
+	public void setStreamingEnabled(boolean state) {
+		streamingEnabled = state;
+	}
+
+	/**
+	 * Sets the executor which is used to deliver results of background tasks
+	 * to the thread in charge of model access and property change events
+	 * (e.g. Swing event dispatch thread or JavaFX application thread). By
+	 * default, results are delivered by the background thread itself.
+	 */
+	public void setEventExecutor(Executor executor) {
+		eventExecutor = executor;
+	}
+
+	/**
+	 * Indicates whether metadata of photos in the current directory is still
+	 * being read in the background.
+	 */
+	public boolean isLoadingMetadata() {
+		return directoryLoader != null;
+	}
+
+	private void openDirectory(File dir, String fileName) {
+		File file = fileName != null ? new File(dir, fileName) : null;
+		PhotoMetadata[] data = file != null ? exifDataManager
+				.readMetadata(new File[] { file }) : new PhotoMetadata[0];
+		exifDataManager.startDirectory(dir, data);
+		if (fileName != null)
+			exifDataManager.selectPhoto(fileName);
+		directoryLoader = new DirectoryLoader(exifDataManager, dir, file,
+				data.length > 0 ? data[0] : null,
+				(loader, batch) -> eventExecutor.execute(() -> onBatchLoaded(loader, batch, null)),
+				loader -> eventExecutor.execute(() -> onLoadingFinished(loader)));
+		directoryLoader.start();
+	}
+
+	private void cancelDirectoryLoader() {
+		if (directoryLoader != null) {
+			directoryLoader.cancel();
+			directoryLoader = null;
+		}
+		removedWhileLoading.clear();
+	}
+
+	/**
+	 * @param libraryNames
+	 *            File names relative to the library root, null outside of
+	 *            library mode.
+	 */
+	private void onBatchLoaded(DirectoryLoader loader, PhotoMetadata[] batch,
+			String[] libraryNames) {
+		if (!removedWhileLoading.isEmpty()) {
+			batch = batch.clone();
+			for (int i = 0; i < batch.length; i++)
+				if (batch[i] != null
+						&& removedWhileLoading.contains(batch[i].getFileName()))
+					batch[i] = null;
+		}
+		if (!loader.isCancelled()
+				&& exifDataManager.addMetadata(batch, libraryNames) > 0) {
+			pcs.firePropertyChange(CURR_METADATA_PROP, null, null);
+			if (loader.getKnownFile() == null
+					&& exifDataManager.getSelectedPhotoData() == null
+					&& exifDataManager.getVisiblePhotoCount() > 0) {
+				exifDataManager.selectFirstPhoto();
+				pcs.firePropertyChange(CURR_PHOTO_PROP, null, null);
+			}
+		}
+	}
+
+	private void onLoadingFinished(DirectoryLoader loader) {
+		if (loader == directoryLoader) {
+			directoryLoader = null;
+			removedWhileLoading.clear();
+			pcs.firePropertyChange(CURR_METADATA_PROP, null, null);
+		}
+	}
+
+	/**
+	 * Starts watching the directory, so that photos which are created,
+	 * modified or deleted by other applications (e.g. camera sync) are
+	 * noticed without rescanning the whole directory.
+	 */
+	private void startDirectoryWatcher(File dir) {
+		stopDirectoryWatcher();
+		directoryWatcher = new DirectoryWatcher(exifDataManager, dir,
+				(watcher, data, removed) -> eventExecutor.execute(
+						() -> onDirectoryChanged(watcher, data, removed)));
+		directoryWatcher.start();
+	}
+
+	private void stopDirectoryWatcher() {
+		if (directoryWatcher != null) {
+			directoryWatcher.cancel();
+			directoryWatcher = null;
+		}
+	}
+
+	private void onDirectoryChanged(DirectoryWatcher watcher,
+			PhotoMetadata[] data, List<String> removedFileNames) {
+		if (watcher != directoryWatcher)
+			return;
+		if (directoryLoader != null) {
+			removedWhileLoading.addAll(removedFileNames);
+			for (PhotoMetadata d : data)
+				if (d != null)
+					removedWhileLoading.remove(d.getFileName());
+		}
+		PhotoMetadata selected = exifDataManager.getSelectedPhotoData();
+		List<String> changedNames = exifDataManager.updateMetadata(data,
+				removedFileNames);
+		List<File> changedFiles = new ArrayList<>();
+		for (String name : changedNames)
+			changedFiles.add(new File(watcher.getDirectory(), name));
+		if (exifDataManager.getSelectedPhotoData() == null
+				&& exifDataManager.getVisiblePhotoCount() > 0)
+			exifDataManager.selectFirstPhoto();
+		boolean added = false;
+		for (PhotoMetadata d : data)
+			added |= d != null;
+		if (added || !changedFiles.isEmpty()) {
+			pcs.firePropertyChange(CURR_METADATA_PROP, null, changedFiles);
+			if (exifDataManager.getSelectedPhotoData() != selected)
+				pcs.firePropertyChange(CURR_PHOTO_PROP, null, null);
+		}
+	}
+
 	public void setVisibility(int minRating, KeywordExpression expression) {
 		exifDataManager.setVisibility(minRating, expression);
 		pcs.firePropertyChange(VISIBILITY_PROP, null, null);
@@ -114,6 +347,61 @@ public class PVModel {
 		pcs.firePropertyChange(CURR_PHOTO_PROP, null, null);
 	}
 
+	/**
+	 * Sets the number of files which are read in parallel when collecting
+	 * metadata. Value 1 is recommended for slow spinning disks.
+	 */
+	public void setScanThreadCount(int count) {
+		exifDataManager.setScanThreadCount(count);
+	}
+
+	public int getScanThreadCount() {
+		return exifDataManager.getScanThreadCount();
+	}
+
+	/**
+	 * Returns the files of visible photos next to the selected photo in
+	 * navigation order (following photos first). Views can use it to decode
+	 * photos in advance.
+	 */
+	public List<File> getNeighbourPhotos(int nextCount, int prevCount) {
+		return exifDataManager.getNeighbourPhotos(nextCount, prevCount);
+	}
+
+	/**
+	 * Returns the neighbour photos which views should decode in advance, as
+	 * specified by {@link #setPrefetchCounts(int, int)}.
+	 */
+	public List<File> getPhotosToPrefetch() {
+		return getNeighbourPhotos(prefetchNextCount, prefetchPrevCount);
+	}
+
+	/**
+	 * Sets the number of photos to be decoded in advance in forward and
+	 * backward direction (default: 2 and 1).
+	 */
+	public void setPrefetchCounts(int nextCount, int prevCount) {
+		prefetchNextCount = Math.max(0, nextCount);
+		prefetchPrevCount = Math.max(0, prevCount);
+	}
+
+	public int getPrefetchNextCount() {
+		return prefetchNextCount;
+	}
+
+	public int getPrefetchPrevCount() {
+		return prefetchPrevCount;
+	}
+
+	/**
+	 * Returns the embedded EXIF thumbnail of the specified photo (JPEG data)
+	 * or null. Views can show it while the photo itself is decoded. The
+	 * method can be called from any thread.
+	 */
+	public byte[] readThumbnailData(File photo) {
+		return exifDataManager.readThumbnailData(photo);
+	}
+
 	/** Changes the order of the photos. Options: Order by name or by date. */
 	public void setSortByDate(boolean state) {
 		exifDataManager.setSortByDate(state);
@@ -127,7 +415,7 @@ public class PVModel {
 		return exifDataManager.getVisiblePhotos();
 	}
 
-	public Set<? extends IndexedGeoPoint> getVisiblePhotoPositions() {
+	public List<? extends IndexedGeoPoint> getVisiblePhotoPositions() {
 		return exifDataManager.getVisiblePhotoPositions();
 	}
 
@@ -197,6 +485,14 @@ public class PVModel {
 		mapDataManager.saveMapParamLookup();
 	}
 	
+	public void loadMetadataIndex() {
+		exifDataManager.loadMetadataIndex();
+	}
+
+	public void saveMetadataIndex() {
+		exifDataManager.saveMetadataIndex();
+	}
+
 	public void addMapRefPoint(GeoRefPoint refPoint) {
 		mapDataManager.addRefPoint(refPoint);
 		pcs.firePropertyChange(MAP_DATA_PROP, null, null);
@@ -209,10 +505,118 @@ public class PVModel {
 
 	
 
-	public int exportPhotos(List<File> photos, File destDir,
+	/**
+	 * Starts copying the specified photos to the destination directory in the
+	 * background. Listeners are informed about the progress by
+	 * {@link #EXPORT_PROP} events, which are delivered by the event executor.
+	 * Warnings are reported by the event executor as well. Only one export
+	 * can run at a time, further calls are ignored.
+	 * 
+	 * @param destFileNameTemplate
+	 *            File name pattern for renaming (possibly null).
+	 */
+	public void startExport(List<File> photos, File destDir,
+			String destFileNameTemplate) {
+		startExport(photos, destDir, destFileNameTemplate, 0);
+	}
+
+	/**
+	 * Starts exporting downscaled JPEG versions of the specified photos in
+	 * the background. Size and quality are defined by
+	 * {@link #setExportMaxEdge(int)} and {@link #setExportQuality(float)}.
+	 * Progress is reported as described for
+	 * {@link #startExport(List, File, String)}.
+	 */
+	public void startResizedExport(List<File> photos, File destDir,
 			String destFileNameTemplate) {
-		PhotoExporter exporter = new PhotoExporter();
-		exporter.setDestination(destDir, destFileNameTemplate);
-		return exporter.copyFiles(photos);
+		startExport(photos, destDir, destFileNameTemplate, exportMaxEdge);
+	}
+
+	private void startExport(List<File> photos, File destDir,
+			String destFileNameTemplate, int maxEdge) {
+		if (exporter != null)
+			return;
+		PhotoExporter exp = new PhotoExporter();
+		exp.setThreadCount(exportThreadCount);
+		exp.setChecksumEnabled(exportChecksumEnabled);
+		exp.setResizing(maxEdge, exportQuality);
+		exp.setDestination(destDir, destFileNameTemplate);
+		if (isLibraryMode())
+			exp.setSourceRoot(getCurrDirectory());
+		exporter = exp;
+		exportProgress = null;
+		List<File> files = new ArrayList<>(photos);
+		Thread thread = new Thread(() -> exp.export(files,
+				progress -> eventExecutor.execute(() -> onExportProgress(exp, progress)),
+				e -> eventExecutor.execute(() -> ErrorHandler.getInstance().handleWarning(e))),
+				"PhotoExporter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the current export. The journal in the destination directory
+	 * allows to resume it later.
+	 */
+	public void cancelExport() {
+		if (exporter != null)
+			exporter.cancel();
+	}
+
+	public boolean isExporting() {
+		return exporter != null;
+	}
+
+	/** Returns the state of the current or last export (possibly null). */
+	public ExportProgress getExportProgress() {
+		return exportProgress;
+	}
+
+	/** Sets the number of files which are copied in parallel. */
+	public void setExportThreadCount(int count) {
+		exportThreadCount = Math.max(1, count);
+	}
+
+	public int getExportThreadCount() {
+		return exportThreadCount;
+	}
+
+	/**
+	 * Enables CRC32 checksums for exported files, which are computed while
+	 * copying (default: enabled).
+	 */
+	public void setExportChecksumEnabled(boolean state) {
+		exportChecksumEnabled = state;
+	}
+
+	public boolean isExportChecksumEnabled() {
+		return exportChecksumEnabled;
+	}
+
+	/** Sets the maximal length of the longer edge for resized exports. */
+	public void setExportMaxEdge(int maxEdge) {
+		exportMaxEdge = Math.max(1, maxEdge);
+	}
+
+	public int getExportMaxEdge() {
+		return exportMaxEdge;
+	}
+
+	/** Sets the JPEG quality (between 0 and 1) for resized exports. */
+	public void setExportQuality(float quality) {
+		exportQuality = Math.max(0, Math.min(1, quality));
+	}
+
+	public float getExportQuality() {
+		return exportQuality;
+	}
+
+	private void onExportProgress(PhotoExporter exp, ExportProgress progress) {
+		if (exp == exporter) {
+			exportProgress = progress;
+			if (progress.isFinished())
+				exporter = null;
+			pcs.firePropertyChange(EXPORT_PROP, null, progress);
+		}
 	}
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.photoviewer.model;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Aggregation of nearby photo positions for one zoom level. The image is
+ * divided into square cells, and all photos within a cell form a cluster,
+ * which is shown as one marker at the centroid of its photos. Each cluster is
+ * represented by its photo with the lowest index. Instances are created by
+ * {@link MapData#getPhotoClusters(List, double, double)}.
+ *
+ * @author Ruediger Lunde
+ */
+public class PhotoClusters {
+
+	private final double cellSize;
+	private int clusterCount;
+	private double[] xs;
+	private double[] ys;
+	private int[] sizes;
+	private IndexedGeoPoint[] photos;
+	/** Maps cell keys to cluster numbers. */
+	private HashMap<Long, Integer> clustersByCell = new HashMap<>();
+
+	/**
+	 * Creates clusters for the specified photos.
+	 *
+	 * @param photoXs
+	 *            Projected x coordinates of the photos (NaN if unknown)
+	 * @param photoYs
+	 *            Projected y coordinates of the photos (NaN if unknown)
+	 * @param cellSize
+	 *            Side length of the cells in image coordinates
+	 */
+	PhotoClusters(List<? extends IndexedGeoPoint> photoPositions, double[] photoXs, double[] photoYs,
+			double cellSize) {
+		this.cellSize = cellSize;
+		int count = photoPositions.size();
+		int[] clusterOfPhoto = new int[count];
+		for (int i = 0; i < count; i++) {
+			clusterOfPhoto[i] = -1;
+			if (!Double.isNaN(photoXs[i]) && !Double.isNaN(photoYs[i])) {
+				Long key = getKey(photoXs[i], photoYs[i]);
+				Integer cluster = clustersByCell.get(key);
+				if (cluster == null) {
+					cluster = clusterCount++;
+					clustersByCell.put(key, cluster);
+				}
+				clusterOfPhoto[i] = cluster;
+			}
+		}
+		xs = new double[clusterCount];
+		ys = new double[clusterCount];
+		sizes = new int[clusterCount];
+		photos = new IndexedGeoPoint[clusterCount];
+		for (int i = 0; i < count; i++) {
+			int cluster = clusterOfPhoto[i];
+			if (cluster != -1) {
+				xs[cluster] += photoXs[i];
+				ys[cluster] += photoYs[i];
+				sizes[cluster]++;
+				IndexedGeoPoint pt = photoPositions.get(i);
+				if (photos[cluster] == null || pt.getIndex() < photos[cluster].getIndex())
+					photos[cluster] = pt;
+			}
+		}
+		for (int c = 0; c < clusterCount; c++) {
+			xs[c] /= sizes[c];
+			ys[c] /= sizes[c];
+		}
+	}
+
+	public int getClusterCount() {
+		return clusterCount;
+	}
+
+	/**
+	 * Copies the image positions of all clusters into the provided arrays,
+	 * which must provide space for at least {@link #getClusterCount()}
+	 * values.
+	 */
+	public void getPositions(double[] xs, double[] ys) {
+		System.arraycopy(this.xs, 0, xs, 0, clusterCount);
+		System.arraycopy(this.ys, 0, ys, 0, clusterCount);
+	}
+
+	/** Returns the number of photos of the specified cluster. */
+	public int getSize(int cluster) {
+		return sizes[cluster];
+	}
+
+	/** Returns the photo with the lowest index of the specified cluster. */
+	public IndexedGeoPoint getPhoto(int cluster) {
+		return photos[cluster];
+	}
+
+	/**
+	 * Returns the photo of the cluster next to the specified position if its
+	 * distance is not larger than radius. If several clusters are located at
+	 * almost the same distance (as specified by tolerance), the photo with the
+	 * lowest index is returned. Only the cells around the position are
+	 * checked.
+	 */
+	public IndexedGeoPoint findPhotoAt(double xImg, double yImg, double radius, double tolerance) {
+		double range = radius + tolerance;
+		long col0 = (long) Math.floor((xImg - range) / cellSize);
+		long col1 = (long) Math.floor((xImg + range) / cellSize);
+		long row0 = (long) Math.floor((yImg - range) / cellSize);
+		long row1 = (long) Math.floor((yImg + range) / cellSize);
+		double nextDist = Double.MAX_VALUE;
+		for (long col = col0; col <= col1; col++) {
+			for (long row = row0; row <= row1; row++) {
+				Integer c = clustersByCell.get(getKey(col, row));
+				if (c != null)
+					nextDist = Math.min(nextDist, distance(c, xImg, yImg));
+			}
+		}
+		IndexedGeoPoint result = null;
+		if (nextDist <= radius) {
+			for (long col = col0; col <= col1; col++) {
+				for (long row = row0; row <= row1; row++) {
+					Integer c = clustersByCell.get(getKey(col, row));
+					if (c != null && distance(c, xImg, yImg) <= nextDist + tolerance
+							&& (result == null || photos[c].getIndex() < result.getIndex()))
+						result = photos[c];
+				}
+			}
+		}
+		return result;
+	}
+
+	private double distance(int c, double x, double y) {
+		return Math.sqrt((xs[c] - x) * (xs[c] - x) + (ys[c] - y) * (ys[c] - y));
+	}
+
+	private Long getKey(double x, double y) {
+		return getKey((long) Math.floor(x / cellSize), (long) Math.floor(y / cellSize));
+	}
+
+	private static Long getKey(long col, long row) {
+		return (col << 32) ^ (row & 0xffffffffL);
+	}
+}
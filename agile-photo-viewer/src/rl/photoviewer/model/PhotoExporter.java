@@ -4,24 +4,92 @@
  */
 package rl.photoviewer.model;
 
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 import rl.util.exceptions.ErrorHandler;
 import rl.util.exceptions.PersistenceException;
+import rl.util.image.ImageScaler;
+
+import com.drew.imaging.ImageMetadataReader;
 
 /**
- * Provides methods to copy and rename files.
+ * Provides methods to copy and rename files. Files are copied by a bounded
+ * pool of worker threads. Destination names are assigned in the order of the
+ * provided files before copying starts, so numbering does not depend on the
+ * number of workers. Without a file name template, names which repeat get a
+ * counter, and files below a source root are named after their relative
+ * path, e.g. 'event_IMG_0001.JPG'. Files whose destination names still
+ * collide are not exported. Each file is copied to a temporary file with a
+ * unique name, checked, and renamed without replacing existing files.
+ * Completed files are recorded in a journal in the destination directory,
+ * keyed by their unique destination names, which allows to resume an
+ * interrupted export without copying them again. The journal is deleted when all files have been exported.
+ * <p>
+ * By default, files are copied with <code>FileChannel.transferTo</code>,
+ * which leaves the copying to the operating system. In checksum mode, the
+ * data passes a large direct buffer instead, and a CRC32 checksum is computed
+ * in the same pass. Each file is read only once. The checksums are recorded
+ * in the journal. When an interrupted export is resumed in checksum mode,
+ * exported files are only skipped if their checksum still matches the
+ * journal. Damaged copies are exported again.
+ * </p>
+ * <p>
+ * In resize mode, photos are decoded, rotated according to their EXIF
+ * orientation, downscaled, and written as JPEG files without metadata. The
+ * number of workers is limited by the number of processors, and each worker
+ * holds only one decoded image, which is read with subsampling.
+ * </p>
+ *
  * @author Ruediger Lunde
- * 
+ *
  */
 public class PhotoExporter {
 
+	/** Name of the journal file in the destination directory. */
+	public final static String JOURNAL_FILE_NAME = ".apv-export-journal";
+	/** Suffix of temporary files, which are renamed after checking. */
+	private final static String PART_SUFFIX = ".part";
+	/** Minimal time between two progress reports in milliseconds. */
+	private final static long PROGRESS_INTERVAL = 200;
+	/** Size of the copy buffer of each worker in checksum mode. */
+	private final static int BUFFER_SIZE = 4 * 1024 * 1024;
+	/** Limits the number of decoded images in memory in resize mode. */
+	private final static int MAX_RESIZE_THREADS = 4;
+
 	File destDir;
 	/**
 	 * Part of the file name template in front of the number. Value null means
@@ -35,11 +103,83 @@ public class PhotoExporter {
 	/** Number which is incremented when exporting a photo. */
 	int currIndex;
 
+	/** Directory of the exported tree, possibly null. */
+	private File sourceRoot;
+	private int threadCount = 2;
+	private volatile boolean cancelled;
+	private boolean checksumEnabled;
+	/** Maximal length of the longer edge in resize mode, 0 means copy. */
+	private int resizeMaxEdge;
+	private float resizeQuality = 0.85f;
+	/** Copy buffers of the worker threads. */
+	private final ThreadLocal<ByteBuffer> buffers = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+	// state of the current export
+	private List<File> files;
+	private String[] destNames;
+	private Map<String, String> journalEntries;
+	private PrintWriter journal;
+	private AtomicInteger copiedCount;
+	private AtomicInteger skippedCount;
+	private AtomicInteger failedCount;
+	private AtomicInteger mismatchCount;
+	private AtomicLong copiedBytes;
+	private long totalBytes;
+	private long startTime;
+	private AtomicLong lastReport;
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * Sets the maximal number of files which are copied in parallel. The
+	 * default is 2. Value 1 can be faster on slow removable media.
+	 */
+	public void setThreadCount(int count) {
+		threadCount = Math.max(1, count);
+	}
+
+	public boolean isChecksumEnabled() {
+		return checksumEnabled;
+	}
+
+	/**
+	 * Enables computation of CRC32 checksums while copying and verification
+	 * of previously exported files when an export is resumed. Copies which do
+	 * not match their source in size are reported as mismatch in both modes.
+	 */
+	public void setChecksumEnabled(boolean state) {
+		checksumEnabled = state;
+	}
+
+	public int getResizeMaxEdge() {
+		return resizeMaxEdge;
+	}
+
+	/**
+	 * Enables resize mode. Exported photos are scaled down so that their
+	 * longer edge does not exceed <code>maxEdge</code> and written as JPEG
+	 * files. Destination names get the extension '.jpg' unless the file name
+	 * template specifies one. Names which repeat after replacing the extension
+	 * get a counter, e.g. 'x.png' and 'x.jpg' become 'x.jpg' and 'x_2.jpg'.
+	 * 
+	 * @param maxEdge
+	 *            Length in pixels, value 0 disables resize mode.
+	 * @param quality
+	 *            JPEG quality between 0 and 1.
+	 */
+	public void setResizing(int maxEdge, float quality) {
+		resizeMaxEdge = Math.max(0, maxEdge);
+		resizeQuality = quality;
+	}
+
 	/**
 	 * Expects a directory and a file name template of the form first prefix
 	 * then optionally number then optionally suffix. E.g.
 	 * 'Scotland2012-005.jpg', 'Scotland2012-.jpg', 'Scotland2012-'.
-	 * 
+	 *
 	 * @param destFileNameTemplate
 	 *            possibly null (copy without renaming).
 	 */
@@ -69,34 +209,459 @@ public class PhotoExporter {
 		}
 	}
 
+	public File getSourceRoot() {
+		return sourceRoot;
+	}
+
+	/**
+	 * Sets the root of a directory tree from which files are exported. If no
+	 * file name template is used, destination names are built from the path
+	 * relative to the root, so that equal file names in different
+	 * subdirectories do not collide.
+	 *
+	 * @param root
+	 *            possibly null (use the file names only).
+	 */
+	public void setSourceRoot(File root) {
+		sourceRoot = root;
+	}
+
+	/**
+	 * Checks whether the directory contains the journal of an export which
+	 * was interrupted or had failures.
+	 */
+	public static boolean isExportUnfinished(File destDir) {
+		return new File(destDir, JOURNAL_FILE_NAME).exists();
+	}
+
+	/**
+	 * Stops the current export after the files which are currently copied.
+	 * Can be called from any thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
 	/**
 	 * Copies the specified files to the previously specified destination
 	 * directory. If a file name pattern was provided, the files are renamed
 	 * accordingly.
-	 * 
+	 *
 	 * @return Number of copied files.
 	 */
 	public int copyFiles(List<File> files) {
-		int result = 0;
+		ExportProgress progress = export(files, p -> {
+		}, e -> ErrorHandler.getInstance().handleWarning(e));
+		return progress.getDoneCount();
+	}
+
+	/**
+	 * Copies the specified files to the previously specified destination
+	 * directory and renames them according to the file name pattern. Files
+	 * which have already been exported by an interrupted export with the
+	 * same files and destination are skipped. The method returns when all
+	 * files are done or the export was cancelled.
+	 *
+	 * @param progressHandler
+	 *            Called from worker threads at most every 200 ms and by the
+	 *            calling thread with the final state.
+	 * @param warningHandler
+	 *            Called by the calling thread for each failed file in file
+	 *            order, for failed workers, and if the journal could not be
+	 *            written.
+	 * @return The final state.
+	 */
+	public ExportProgress export(List<File> files,
+			Consumer<ExportProgress> progressHandler,
+			Consumer<Exception> warningHandler) {
+		this.files = files;
+		int count = files.size();
+		destNames = new String[count];
 		if (namePrefix != null)
-			while (Math.log10(files.size()) + 1e-5 > numFormatString.length())
+			while (Math.log10(count) + 1e-5 > numFormatString.length())
 				numFormatString += "0";
-		for (File file : files) {
-			Path source = Paths.get(file.getAbsolutePath());
-			String name = getDestFileName(file.getName());
-			Path dest = Paths.get(new File(destDir, name).getAbsolutePath());
+		copiedCount = new AtomicInteger();
+		skippedCount = new AtomicInteger();
+		failedCount = new AtomicInteger();
+		mismatchCount = new AtomicInteger();
+		totalBytes = 0;
+		Exception[] errors = new Exception[count];
+		Set<String> usedNames = new HashSet<>();
+		for (int i = 0; i < count; i++) {
+			File file = files.get(i);
+			String name = getDestFileName(namePrefix == null ? getSourceName(file)
+					: file.getName());
+			if (resizeMaxEdge > 0 && nameSuffix == null)
+				name = toJpegName(name);
+			if (namePrefix == null)
+				name = makeUnique(name, usedNames);
+			destNames[i] = name;
+			// some file systems ignore case
+			if (!usedNames.add(name.toLowerCase())) {
+				errors[i] = new FileAlreadyExistsException(name, null,
+						"Destination name is used by another file of the export");
+				failedCount.incrementAndGet();
+			}
+			totalBytes += file.length();
+		}
+		copiedBytes = new AtomicLong();
+		lastReport = new AtomicLong(System.currentTimeMillis());
+		startTime = System.currentTimeMillis();
+		File journalFile = new File(destDir, JOURNAL_FILE_NAME);
+		try {
+			journalEntries = readJournal(journalFile);
+			journal = new PrintWriter(new OutputStreamWriter(
+					new FileOutputStream(journalFile, true),
+					StandardCharsets.UTF_8), true);
+		} catch (IOException ex) {
+			journalEntries = new HashMap<>();
+			journal = null;
+			warningHandler.accept(new PersistenceException(
+					"Could not write export journal " + journalFile + ".", ex));
+		}
+		progressHandler.accept(createProgress(false));
+
+		AtomicInteger next = new AtomicInteger();
+		int workers = Math.min(threadCount, count);
+		if (resizeMaxEdge > 0)
+			workers = Math.min(Math.min(MAX_RESIZE_THREADS, Runtime
+					.getRuntime().availableProcessors()), count);
+		List<Callable<Object>> tasks = new ArrayList<>();
+		for (int w = 0; w < workers; w++) {
+			tasks.add(() -> {
+				int i;
+				while (!cancelled && (i = next.getAndIncrement()) < count) {
+					if (errors[i] != null)
+						continue; // name collision
+					try {
+						exportFile(i);
+					} catch (Exception ex) { // IOException, RuntimeException
+						errors[i] = ex;
+						failedCount.incrementAndGet();
+						if (ex instanceof MismatchException)
+							mismatchCount.incrementAndGet();
+					}
+					reportProgress(progressHandler);
+				}
+				return null;
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, workers), r -> {
+			Thread thread = new Thread(r, "PhotoExporter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		List<Exception> workerErrors = new ArrayList<>();
+		try {
+			for (Future<Object> future : executor.invokeAll(tasks)) {
+				try {
+					future.get();
+				} catch (ExecutionException ex) {
+					// e.g. out of memory, the file of the worker is not exported
+					failedCount.incrementAndGet();
+					workerErrors.add(new PersistenceException(
+							"Export worker failed.", ex.getCause()));
+				}
+			}
+		} catch (InterruptedException e) {
+			cancelled = true;
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdown();
+		}
+		if (journal != null) {
+			// the print writer does not throw exceptions
+			if (journal.checkError())
+				workerErrors.add(new PersistenceException(
+						"Could not write export journal " + journalFile
+								+ ". Resuming the export may fail."));
+			journal.close();
+			if (failedCount.get() == 0 && !cancelled)
+				journalFile.delete();
+		}
+		for (int i = 0; i < count; i++) {
+			if (errors[i] != null)
+				warningHandler.accept(new PersistenceException(
+						"Could not copy file " + files.get(i).getName() + ".",
+						errors[i]));
+		}
+		for (Exception e : workerErrors)
+			warningHandler.accept(e);
+		ExportProgress result = createProgress(true);
+		progressHandler.accept(result);
+		return result;
+	}
+
+	/**
+	 * Exports the file with the specified position unless the journal states
+	 * that it has already been exported. Journal entries consist of the
+	 * destination name, source path, size, and modification time, the export
+	 * mode, the size of the result, and optionally its checksum. In checksum
+	 * mode, a journaled file whose checksum does not match is replaced.
+	 */
+	private void exportFile(int i) throws IOException {
+		File file = files.get(i);
+		File destFile = new File(destDir, destNames[i]);
+		String entry = file.getAbsolutePath() + "\t" + file.length() + "\t"
+				+ file.lastModified() + "\t"
+				+ (resizeMaxEdge > 0 ? "resize " + resizeMaxEdge + " " + resizeQuality : "copy");
+		String done = journalEntries.get(destNames[i]);
+		if (done != null && done.startsWith(entry + "\t") && destFile.exists()) {
+			String[] result = done.substring(entry.length() + 1).split("\t");
+			if (result[0].equals(Long.toString(destFile.length()))) {
+				if (!checksumEnabled || result.length < 2
+						|| result[1].equals(Long.toHexString(computeChecksum(destFile)))) {
+					skippedCount.incrementAndGet();
+					return;
+				}
+				// damaged since the interrupted export
+				Files.delete(destFile.toPath());
+			}
+		}
+		if (destFile.exists())
+			throw new FileAlreadyExistsException(destFile.getPath());
+		Path dest = Paths.get(destFile.getAbsolutePath());
+		long checksum = resizeMaxEdge > 0 ? resize(file, dest) : copy(file, dest);
+		if (journal != null) {
+			entry += "\t" + destFile.length();
+			if (checksum != -1)
+				entry += "\t" + Long.toHexString(checksum);
+			synchronized (journal) {
+				journal.println(destNames[i] + "\t" + entry);
+			}
+		}
+		copiedBytes.addAndGet(file.length());
+		copiedCount.incrementAndGet();
+	}
+
+	/**
+	 * Copies the file to a temporary file and renames it after checking that
+	 * the number of copied bytes matches the source and the source has not
+	 * been modified meanwhile. Existing files are not replaced.
+	 * 
+	 * @return The CRC32 checksum of the data or -1 if checksum mode is off.
+	 */
+	private long copy(File file, Path dest) throws IOException {
+		Path tmp = createPartFile(dest);
+		long size = file.length();
+		long modified = file.lastModified();
+		long checksum = -1;
+		try {
+			try (FileChannel in = FileChannel.open(file.toPath(),
+					StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(tmp,
+							StandardOpenOption.WRITE)) {
+				long copied;
+				if (checksumEnabled) {
+					CRC32 crc = new CRC32();
+					copied = copyWithChecksum(in, out, crc);
+					out.force(false);
+					checksum = crc.getValue();
+				} else {
+					copied = transfer(in, out);
+				}
+				if (copied != size || file.length() != size
+						|| file.lastModified() != modified)
+					throw new MismatchException("Copy of " + file.getName()
+							+ " does not match the source (" + copied + " of "
+							+ size + " bytes copied).");
+			}
+			Files.move(tmp, dest);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		return checksum;
+	}
+
+	/**
+	 * Writes a downscaled JPEG version of the photo to a temporary file and
+	 * renames it if the source has not been modified meanwhile.
+	 * 
+	 * @return The CRC32 checksum of the result or -1 if checksum mode is off.
+	 */
+	private long resize(File file, Path dest) throws IOException {
+		Path tmp = createPartFile(dest);
+		long size = file.length();
+		long modified = file.lastModified();
+		CRC32 crc = new CRC32();
+		try {
+			BufferedImage img = ImageScaler.readScaled(file, resizeMaxEdge,
+					readOrientation(file));
+			try (FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+				OutputStream out = new BufferedOutputStream(fos);
+				if (checksumEnabled)
+					out = new CheckedOutputStream(out, crc);
+				ImageScaler.writeJpeg(img, out, resizeQuality);
+				out.flush();
+				if (checksumEnabled)
+					fos.getFD().sync();
+			}
+			if (file.length() != size || file.lastModified() != modified)
+				throw new MismatchException("Source " + file.getName()
+						+ " has been modified during export.");
+			Files.move(tmp, dest);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		return checksumEnabled ? crc.getValue() : -1;
+	}
+
+	/**
+	 * Creates an empty temporary file next to the destination. The name is
+	 * new, so temporary files are never shared between workers or exports.
+	 */
+	private static Path createPartFile(Path dest) throws IOException {
+		while (true) {
+			Path tmp = dest.resolveSibling(dest.getFileName() + "."
+					+ Integer.toHexString(ThreadLocalRandom.current().nextInt())
+					+ PART_SUFFIX);
 			try {
-				Files.copy(source, dest);
-				result++;
-			} catch (IOException ex) {
-				Exception e = new PersistenceException("Could not copy file "
-						+ file.getName() + ".", ex);
-				ErrorHandler.getInstance().handleWarning(e);
+				return Files.createFile(tmp);
+			} catch (FileAlreadyExistsException ex) {
+				// try another name
+			}
+		}
+	}
+
+	/** Returns the EXIF orientation of the photo or 0 if unknown. */
+	private static int readOrientation(File file) {
+		try {
+			return new PhotoMetadata(file, ImageMetadataReader.readMetadata(file))
+					.getOrientation();
+		} catch (Exception ex) { // ImageProcessingException, IOException
+			return 0;
+		}
+	}
+
+	/** Replaces the extension of the file name by '.jpg' if necessary. */
+	private static String toJpegName(String fileName) {
+		String lower = fileName.toLowerCase();
+		if (lower.endsWith(".jpg") || lower.endsWith(".jpeg"))
+			return fileName;
+		int dotPos = fileName.lastIndexOf('.');
+		return (dotPos != -1 ? fileName.substring(0, dotPos) : fileName) + ".jpg";
+	}
+
+	/**
+	 * Returns the path of the file relative to the source root with '_' as
+	 * separator, or the file name if the file is not below the root.
+	 */
+	private String getSourceName(File file) {
+		if (sourceRoot != null) {
+			Path root = sourceRoot.toPath().toAbsolutePath().normalize();
+			Path path = file.toPath().toAbsolutePath().normalize();
+			if (path.startsWith(root) && !path.equals(root)) {
+				StringBuilder result = new StringBuilder();
+				for (Path element : root.relativize(path)) {
+					if (result.length() > 0)
+						result.append('_');
+					result.append(element);
+				}
+				return result.toString();
 			}
 		}
+		return file.getName();
+	}
+
+	/**
+	 * Appends '_2', '_3', ... to the name in front of the extension until it
+	 * differs from the used names (lower case).
+	 */
+	private static String makeUnique(String fileName, Set<String> usedNames) {
+		int dotPos = fileName.lastIndexOf('.');
+		if (dotPos == -1)
+			dotPos = fileName.length();
+		String result = fileName;
+		for (int n = 2; usedNames.contains(result.toLowerCase()); n++)
+			result = fileName.substring(0, dotPos) + "_" + n
+					+ fileName.substring(dotPos);
+		return result;
+	}
+
+	/** Lets the operating system copy the data. */
+	private long transfer(FileChannel in, FileChannel out) throws IOException {
+		long pos = 0;
+		long n;
+		while ((n = in.transferTo(pos, Long.MAX_VALUE, out)) > 0)
+			pos += n;
+		return pos;
+	}
+
+	/**
+	 * Copies the data through the direct buffer of the current thread and
+	 * updates the checksum with the same buffer content.
+	 */
+	private long copyWithChecksum(FileChannel in, FileChannel out, CRC32 crc)
+			throws IOException {
+		ByteBuffer buffer = buffers.get();
+		long result = 0;
+		buffer.clear();
+		while (in.read(buffer) != -1) {
+			buffer.flip();
+			result += buffer.remaining();
+			crc.update(buffer.duplicate());
+			while (buffer.hasRemaining())
+				out.write(buffer);
+			buffer.clear();
+		}
 		return result;
 	}
 
+	/** Computes the CRC32 checksum of the file with the buffer of the current thread. */
+	private long computeChecksum(File file) throws IOException {
+		ByteBuffer buffer = buffers.get();
+		CRC32 crc = new CRC32();
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			buffer.clear();
+			while (in.read(buffer) != -1) {
+				buffer.flip();
+				crc.update(buffer);
+				buffer.clear();
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Reads the entries of the journal (destination file name mapped to
+	 * source path, size, and modification time).
+	 */
+	private Map<String, String> readJournal(File journalFile) throws IOException {
+		Map<String, String> result = new HashMap<>();
+		if (journalFile.exists()) {
+			try (BufferedReader reader = Files.newBufferedReader(
+					journalFile.toPath(), StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					int tabPos = line.indexOf('\t');
+					if (tabPos != -1)
+						result.put(line.substring(0, tabPos),
+								line.substring(tabPos + 1));
+				}
+			}
+		}
+		return result;
+	}
+
+	private void reportProgress(Consumer<ExportProgress> progressHandler) {
+		long now = System.currentTimeMillis();
+		long last = lastReport.get();
+		if (now - last >= PROGRESS_INTERVAL
+				&& lastReport.compareAndSet(last, now))
+			progressHandler.accept(createProgress(false));
+	}
+
+	private ExportProgress createProgress(boolean finished) {
+		return new ExportProgress(files.size(), copiedCount.get(),
+				skippedCount.get(), failedCount.get(), mismatchCount.get(), totalBytes,
+				copiedBytes.get(), System.currentTimeMillis() - startTime,
+				finished, cancelled);
+	}
+
 	private String getDestFileName(String sourceFileName) {
 		if (namePrefix == null)
 			return sourceFileName;
@@ -114,6 +679,15 @@ public class PhotoExporter {
 		}
 	}
 
+	/** Indicates that a copy does not match its source. */
+	private static class MismatchException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		MismatchException(String message) {
+			super(message);
+		}
+	}
+
 	// public static void main(String[] args) {
 	// PhotoExporter pe = new PhotoExporter();
 	// pe.setDestination(new File("/ab/c"), "d");
@@ -5,9 +5,13 @@
 package rl.photoviewer.model;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -27,13 +31,22 @@ import com.drew.metadata.xmp.XmpDirectory;
 /**
  * Container for selected Exif metadata. Currently, for each photo the file
  * name, caption, date, camera model, latitude and longitude values, as well as
- * all keywords are stored.
+ * all keywords are stored. Instances are serializable, so that they can be
+ * stored in the {@link MetadataIndex}. Strings which are typically shared by
+ * many photos (camera settings, keywords) are interned, also when instances
+ * are read from the index, which keeps the footprint small for large
+ * libraries. Instances of the index are used by the {@link ExifDataManager}
+ * directly. In library mode, the manager assigns a file name relative to the
+ * library root instead of copying them.
  * 
  * @author Ruediger Lunde
  * 
  */
-public class PhotoMetadata implements IndexedGeoPoint {
-	private int index;
+public class PhotoMetadata implements IndexedGeoPoint, Serializable {
+	private static final long serialVersionUID = 1L;
+	private transient int index;
+	/** Path relative to the library root, assigned by the manager (possibly null). */
+	private transient String libraryName;
 	private String fileName;
 	private String caption;
 	private int rating;
@@ -114,6 +127,39 @@ public class PhotoMetadata implements IndexedGeoPoint {
 				// nothing to do...
 			}
 		}
+		internStrings();
+	}
+
+	/**
+	 * Replaces the strings which are shared by many photos by their canonical
+	 * representations.
+	 */
+	private void internStrings() {
+		exposureTime = intern(exposureTime);
+		focalLength = intern(focalLength);
+		iso = intern(iso);
+		lensModel = intern(lensModel);
+		model = intern(model);
+		keywords = intern(keywords);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		internStrings();
+	}
+
+	private static String intern(String s) {
+		return s != null ? s.intern() : null;
+	}
+
+	private static List<String> intern(List<String> strings) {
+		if (strings.isEmpty())
+			return Collections.emptyList();
+		List<String> result = new ArrayList<>(strings.size());
+		for (String s : strings)
+			result.add(s.intern());
+		return result;
 	}
 
 	public int getIndex() {
@@ -124,8 +170,21 @@ public class PhotoMetadata implements IndexedGeoPoint {
 		this.index = index;
 	}
 
+	/**
+	 * Returns the name of the photo file. In library mode, the name is the
+	 * path relative to the library root.
+	 */
 	public String getFileName() {
-		return fileName;
+		return libraryName != null ? libraryName : fileName;
+	}
+
+	/**
+	 * Sets the path relative to the library root, value null restores the
+	 * plain file name. Like the index, the name belongs to the state of the
+	 * manager and must only be set by it.
+	 */
+	void setLibraryName(String libraryName) {
+		this.libraryName = libraryName;
 	}
 
 	public String getCaption() {
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.photoviewer.model;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Uniform grid over the projected image positions of photos. Each cell
+ * contains the positions (in the list of photos) of the photos which are
+ * located in the cell. The cell size is chosen according to the search
+ * range, so that a hit-test only needs to check the photos of a few
+ * neighbouring cells.
+ *
+ * @author Ruediger Lunde
+ */
+class PhotoPositionGrid {
+
+	private final List<? extends IndexedGeoPoint> photoPositions;
+	private final double[] xs;
+	private final double[] ys;
+	private final double cellSize;
+	private final HashMap<Long, int[]> cells = new HashMap<>();
+
+	/**
+	 * Creates a grid for the specified photos.
+	 *
+	 * @param xs
+	 *            Projected x coordinates of the photos (NaN if unknown)
+	 * @param ys
+	 *            Projected y coordinates of the photos (NaN if unknown)
+	 * @param range
+	 *            Typical search range, determines the cell size
+	 */
+	PhotoPositionGrid(List<? extends IndexedGeoPoint> photoPositions, double[] xs, double[] ys, double range) {
+		this.photoPositions = photoPositions;
+		this.xs = xs;
+		this.ys = ys;
+		cellSize = computeCellSize(range);
+		HashMap<Long, Integer> counts = new HashMap<>();
+		for (int i = 0; i < xs.length; i++)
+			if (!Double.isNaN(xs[i]))
+				counts.merge(getKey(xs[i], ys[i]), 1, Integer::sum);
+		for (Long key : counts.keySet())
+			cells.put(key, new int[counts.get(key)]);
+		for (int i = 0; i < xs.length; i++) {
+			if (!Double.isNaN(xs[i])) {
+				Long key = getKey(xs[i], ys[i]);
+				int[] cell = cells.get(key);
+				int remaining = counts.get(key);
+				cell[cell.length - remaining] = i;
+				counts.put(key, remaining - 1);
+			}
+		}
+	}
+
+	/** Returns the photos for which the grid was created. */
+	List<? extends IndexedGeoPoint> getPhotoPositions() {
+		return photoPositions;
+	}
+
+	/**
+	 * Checks whether the cell size fits to the specified search range. Much
+	 * larger cells would contain too many photos.
+	 */
+	boolean isSuitable(double range) {
+		return cellSize == computeCellSize(range);
+	}
+
+	/**
+	 * Returns the photo next to the specified position if its distance is not
+	 * larger than radius. If several photos are located at almost the same
+	 * distance (as specified by tolerance), the photo with the lowest index is
+	 * returned.
+	 */
+	IndexedGeoPoint findPhotoPositionAt(double xImg, double yImg, double radius, double tolerance) {
+		double range = radius + tolerance;
+		long col0 = (long) Math.floor((xImg - range) / cellSize);
+		long col1 = (long) Math.floor((xImg + range) / cellSize);
+		long row0 = (long) Math.floor((yImg - range) / cellSize);
+		long row1 = (long) Math.floor((yImg + range) / cellSize);
+		double nextDist = Double.MAX_VALUE;
+		for (long col = col0; col <= col1; col++) {
+			for (long row = row0; row <= row1; row++) {
+				int[] cell = cells.get(getKey(col, row));
+				if (cell != null) {
+					for (int i : cell)
+						nextDist = Math.min(nextDist, distance(i, xImg, yImg));
+				}
+			}
+		}
+		IndexedGeoPoint result = null;
+		if (nextDist <= radius) {
+			// get first photo of a bunch of photos at almost same distance.
+			for (long col = col0; col <= col1; col++) {
+				for (long row = row0; row <= row1; row++) {
+					int[] cell = cells.get(getKey(col, row));
+					if (cell != null) {
+						for (int i : cell) {
+							IndexedGeoPoint pt = photoPositions.get(i);
+							if (distance(i, xImg, yImg) <= nextDist + tolerance
+									&& (result == null || pt.getIndex() < result.getIndex()))
+								result = pt;
+						}
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/** Returns the smallest power of two which is not smaller than range. */
+	private static double computeCellSize(double range) {
+		return Math.pow(2, Math.ceil(Math.log(Math.max(range, 1)) / Math.log(2)));
+	}
+
+	private double distance(int i, double x, double y) {
+		return Math.sqrt((xs[i] - x) * (xs[i] - x) + (ys[i] - y) * (ys[i] - y));
+	}
+
+	private Long getKey(double x, double y) {
+		return getKey((long) Math.floor(x / cellSize), (long) Math.floor(y / cellSize));
+	}
+
+	private static Long getKey(long col, long row) {
+		return (col << 32) ^ (row & 0xffffffffL);
+	}
+}
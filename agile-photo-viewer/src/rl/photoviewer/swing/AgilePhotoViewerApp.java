@@ -13,6 +13,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map.Entry;
 
+import javax.swing.SwingUtilities;
 import javax.swing.UIDefaults;
 import javax.swing.UIManager;
 import javax.swing.plaf.FontUIResource;
@@ -41,6 +42,8 @@ public class AgilePhotoViewerApp {
 	/** Creates model, view, and controller and connects the three components. */
 	public AgilePhotoViewerApp() {
 		model = new PVModel();
+		model.setEventExecutor(SwingUtilities::invokeLater);
+		model.setStreamingEnabled(true);
 		view = new PVView(model);
 		controller = new PVController(view, model);
 		model.addPropertyChangeListener(view);
@@ -12,7 +12,6 @@ import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.awt.geom.Point2D;
 import java.io.File;
 import java.util.List;
 
@@ -23,9 +22,9 @@ import javax.swing.SwingUtilities;
 import rl.photoviewer.model.IndexedGeoPoint;
 import rl.photoviewer.model.KeywordExpression;
 import rl.photoviewer.model.PVModel;
+import rl.photoviewer.model.PhotoExporter;
 import rl.photoviewer.swing.view.Commands;
 import rl.photoviewer.swing.view.AboutDialog;
-import rl.photoviewer.swing.view.MapImagePanel;
 import rl.photoviewer.swing.view.PVView;
 import rl.photoviewer.swing.view.VisibilityPanel;
 import rl.util.exceptions.ErrorHandler;
@@ -64,6 +63,14 @@ public class PVController extends MouseAdapter implements Controller {
 					view.getVisibilityPanel().resetSelectedRating();
 					view.getVisibilityPanel().clear();
 				}
+			} else if (e.getActionCommand() == Commands.OPEN_LIBRARY_CMD) {
+				File dir = view.showLibraryChooser(model.getCurrDirectory());
+				if (dir != null) {
+					model.openLibrary(dir);
+					statusMsg = "Opening library " + dir + " ...";
+					view.getVisibilityPanel().resetSelectedRating();
+					view.getVisibilityPanel().clear();
+				}
 			} else if (e.getActionCommand() == Commands.FIRST_CMD) {
 				model.selectFirstPhoto();
 			} else if (e.getActionCommand() == Commands.PREV_CMD) {
@@ -91,9 +98,17 @@ public class PVController extends MouseAdapter implements Controller {
 			} else if (e.getActionCommand() == Commands.CLEAR_MAP_CMD) {
 				model.clearCurrentMap();
 			} else if (e.getActionCommand() == Commands.EXPORT_CMD) {
-				int copied = exportPhotos();
-				if (copied != -1)
-					statusMsg = copied + " files copied.";
+				if (model.isExporting()) {
+					model.cancelExport();
+					statusMsg = "Cancelling export ...";
+				} else if (exportPhotos(false)) {
+					statusMsg = "Exporting " + model.getVisiblePhotoCount()
+							+ " photo(s) ...";
+				}
+			} else if (e.getActionCommand() == Commands.EXPORT_RESIZED_CMD) {
+				if (!model.isExporting() && exportPhotos(true))
+					statusMsg = "Exporting " + model.getVisiblePhotoCount()
+							+ " resized photo(s) ...";
 			} else if (e.getActionCommand() == Commands.DELETE_SELECTED_PHOTO_CMD) {
 				deleteSelectedPhoto();
 			} else if (e.getActionCommand() == Commands.RESTORE_SESSION_CMD) {
@@ -153,12 +168,7 @@ public class PVController extends MouseAdapter implements Controller {
 		} else if (e.getSource() == view.getMapImagePanel()
 				&& e.getButton() == MouseEvent.BUTTON1
 				&& e.getClickCount() == 1) {
-			MapImagePanel mip = view.getMapImagePanel();
-			Point2D mouseImg = mip.viewToImage(new Point2D.Double(e.getX(), e.getY()));
-			double radius = mip.viewToImage(20);
-			double tolerance = mip.viewToImage(5);
-			IndexedGeoPoint gpoint = model.getMapData().findPhotoPositionAt(model.getVisiblePhotoPositions(), 
-					mouseImg.getX(), mouseImg.getY(), radius, tolerance);
+			IndexedGeoPoint gpoint = view.getMapImagePanel().findPhotoPositionAt(e.getX(), e.getY());
 			if (gpoint != null)
 				model.selectPhotoByMetadata(gpoint);
 		}
@@ -242,10 +252,33 @@ public class PVController extends MouseAdapter implements Controller {
 		frame.setVisible(true);
 	}
 
-	protected int exportPhotos() {
+	/**
+	 * Asks the user for a destination and starts exporting the visible
+	 * photos. An unfinished export in the destination directory is resumed
+	 * without confirmation.
+	 * 
+	 * @param resized
+	 *            If true, the user is asked for the maximal edge length and
+	 *            downscaled JPEG versions are exported.
+	 * @return Value true if the export was started.
+	 */
+	protected boolean exportPhotos(boolean resized) {
 		List<File> photos = model.getVisiblePhotos();
+		if (resized) {
+			String value = JOptionPane.showInputDialog(view.getFrame(),
+					"Maximal length of the longer edge (pixels):",
+					model.getExportMaxEdge());
+			if (value == null)
+				return false;
+			try {
+				model.setExportMaxEdge(Integer.parseInt(value.trim()));
+			} catch (NumberFormatException e) {
+				view.getStatusPanel().setStatus("Invalid edge length: " + value);
+				return false;
+			}
+		}
 		File destination = view.showOutputFileChooser(photos.size());
-		int copied = -1;
+		boolean started = false;
 		if (destination != null) {
 			File destDir = destination;
 			String destFileNameTemplate = null;
@@ -254,17 +287,21 @@ public class PVController extends MouseAdapter implements Controller {
 				destFileNameTemplate = destination.getName();
 			}
 			if (destDir.list().length == 0
+					|| PhotoExporter.isExportUnfinished(destDir)
 					|| JOptionPane.OK_OPTION == JOptionPane.showConfirmDialog(
 							view.getFrame(), new String[] {
 									"Destination directory is not empty:",
 									destDir.getAbsolutePath(),
 									"Continue anyway?" }, "Warning",
 							JOptionPane.OK_CANCEL_OPTION)) {
-				copied = model.exportPhotos(photos, destDir,
-						destFileNameTemplate);
+				if (resized)
+					model.startResizedExport(photos, destDir, destFileNameTemplate);
+				else
+					model.startExport(photos, destDir, destFileNameTemplate);
+				started = true;
 			}
 		}
-		return copied;
+		return started;
 	}
 
 	protected void deleteSelectedPhoto() {
@@ -12,6 +12,7 @@ package rl.photoviewer.swing.view;
  */
 public abstract class Commands {
 	public static String SELECT_CMD = "SelectCmd";
+	public static String OPEN_LIBRARY_CMD = "OpenLibraryCmd";
 	public static String FIRST_CMD = "FirstCmd";
 	public static String PREV_CMD = "PrevCmd";
 	public static String NEXT_CMD = "NextCmd";
@@ -23,6 +24,7 @@ public abstract class Commands {
 	public static String USE_PHOTO_AS_MAP_CMD = "UsePhotoAsMapCmd";
 	public static String CLEAR_MAP_CMD = "ClearMapCmd";
 	public static String EXPORT_CMD = "ExportCmd";
+	public static String EXPORT_RESIZED_CMD = "ExportResizedCmd";
 	public static String DELETE_SELECTED_PHOTO_CMD = "DeleteSelectedPhotoCmd";
 	public static String STORE_SESSION_CMD = "StoreSessionCmd";
 	public static String RESTORE_SESSION_CMD = "RestoreSessionCmd";
@@ -40,6 +40,7 @@ public class ControlPanel extends JPanel {
 	JPopupMenu popup;
 	JMenuItem helpMenuItem;
 	JMenuItem exportMenuItem;
+	JMenuItem exportResizedMenuItem;
 	JMenuItem deleteMenuItem;
 	ActionListener listener;
 	MouseListener popupListener;
@@ -94,7 +95,12 @@ public class ControlPanel extends JPanel {
 		helpMenuItem.addActionListener(controller);
 		popup.add(helpMenuItem);
 
-		JMenuItem item = new JMenuItem("Use Photo as Map");
+		JMenuItem item = new JMenuItem("Open Library");
+		item.setActionCommand(Commands.OPEN_LIBRARY_CMD);
+		item.addActionListener(controller);
+		popup.add(item);
+
+		item = new JMenuItem("Use Photo as Map");
 		item.setActionCommand(Commands.USE_PHOTO_AS_MAP_CMD);
 		item.addActionListener(controller);
 		popup.add(item);
@@ -114,6 +120,11 @@ public class ControlPanel extends JPanel {
 		exportMenuItem.addActionListener(controller);
 		popup.add(exportMenuItem);
 		
+		exportResizedMenuItem = new JMenuItem("Export Visible Photos Resized");
+		exportResizedMenuItem.setActionCommand(Commands.EXPORT_RESIZED_CMD);
+		exportResizedMenuItem.addActionListener(controller);
+		popup.add(exportResizedMenuItem);
+		
 		deleteMenuItem = new JMenuItem("Delete Selected Photo");
 		deleteMenuItem.setActionCommand(Commands.DELETE_SELECTED_PHOTO_CMD);
 		deleteMenuItem.addActionListener(controller);
@@ -180,10 +191,17 @@ public class ControlPanel extends JPanel {
 		undecorateButton.setSelected(b);
 	}
 
+	/** Turns the export menu item into a cancel item while exporting. */
+	public void setExportRunning(boolean b) {
+		exportMenuItem.setText(b ? "Cancel Export" : "Export Visible Photos");
+		exportResizedMenuItem.setEnabled(!b);
+	}
+
 	public void setDialogTriggerEnabled(boolean b) {
 		selButton.setEnabled(b);
 		helpMenuItem.setEnabled(b);
 		exportMenuItem.setEnabled(b);
+		exportResizedMenuItem.setEnabled(b);
 		deleteMenuItem.setEnabled(b);
 	}
 
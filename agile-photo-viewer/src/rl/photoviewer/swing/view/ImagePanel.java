@@ -5,26 +5,40 @@
 package rl.photoviewer.swing.view;
 
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Insets;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
 
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
+import rl.util.cache.LruCache;
 import rl.util.exceptions.ErrorHandler;
 import rl.util.exceptions.PersistenceException;
+import rl.util.image.ImageFileReader;
 
 /**
  * Simple panel showing an image. The image is scaled so that it fills the
@@ -32,6 +46,12 @@ import rl.util.exceptions.PersistenceException;
  * necessary. The user can zoom into the picture using mouse wheel and mouse
  * drags. Supported mouse events: mouse-button1-drag, mouse-wheel,
  * mouse-wheel-shift, mouse-button2, mouse-button2-shift.
+ * <p>
+ * The image area is rendered into a back-buffer. When the image is dragged,
+ * the buffer content is shifted and only the uncovered regions are rendered
+ * again. Any repaint request invalidates the buffer. Downscaled images are
+ * drawn from a high quality copy which is created once per scale factor.
+ * </p>
  * 
  * @author Ruediger Lunde
  * 
@@ -40,6 +60,49 @@ public class ImagePanel extends JPanel {
 	private static final long serialVersionUID = 1L;
 	protected File imageFile;
 	protected Image image;
+	/**
+	 * Size of the image in full resolution (after rotation). All image
+	 * coordinates refer to this size, even if the image was decoded with
+	 * reduced resolution. The image itself is not rotated, rotation according
+	 * to the EXIF orientation is applied when painting.
+	 */
+	protected int imageWidth;
+	protected int imageHeight;
+	/** Ratio between decoded resolution and full resolution (at most 1). */
+	private double imageResolution = 1;
+	private int imageOrientation;
+	/** File for which the full resolution is loaded or has been loaded. */
+	private File fullResolutionFile;
+	/** Most recently requested file, accessed by the loader thread. */
+	private volatile File requestedFile;
+	/** Decodes images in the background, one after the other. */
+	private ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "ImageLoader");
+		thread.setDaemon(true);
+		return thread;
+	});
+	/** Provides embedded thumbnails (possibly null). */
+	private Function<File, byte[]> thumbnailReader;
+	/** Maximal number of entries in the full size cache. */
+	private static final int FULL_SIZE_CACHE_ENTRIES = 256;
+	/**
+	 * Full resolution sizes of recently shown images, read by the loader
+	 * thread.
+	 */
+	private Map<File, Dimension> fullSizes = Collections
+			.synchronizedMap(new LinkedHashMap<File, Dimension>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<File, Dimension> eldest) {
+					return size() > FULL_SIZE_CACHE_ENTRIES;
+				}
+			});
+	/**
+	 * If true, images are decoded with a resolution which is just sufficient
+	 * for scale-to-fit. The full resolution is loaded on demand.
+	 */
+	private boolean subsamplingEnabled;
 	private int imageRefPosX;
 	private int imageRefPosY;
 	/**
@@ -51,6 +114,25 @@ public class ImagePanel extends JPanel {
 	private int viewWidth;
 	private int viewHeight;
 	protected Insets border;
+	/** Provides decoded images if set (possibly null). */
+	private ImagePrefetcher prefetcher;
+	/** Provides recently shown images if set (possibly null). */
+	private LruCache<File, BufferedImage> imageCache;
+	/** Rendered image area (without border). */
+	private BufferedImage backBuffer;
+	private boolean backBufferValid;
+	/** Scale and position of the image when the buffer was rendered. */
+	private double backBufferScale;
+	private int backBufferRefPosX;
+	private int backBufferRefPosY;
+	/** Margin (in view pixels) of the scaled image copy around the view. */
+	private static final int SCALED_IMAGE_MARGIN = 256;
+	/** Downscaled copy of the visible part of the image (possibly null). */
+	private BufferedImage scaledImage;
+	private Image scaledImageSource;
+	private double scaledImageScale;
+	/** Area covered by the copy, relative to the image reference position. */
+	private Rectangle scaledImageRegion;
 
 	public ImagePanel() {
 		setBackground(Color.DARK_GRAY);
@@ -61,52 +143,322 @@ public class ImagePanel extends JPanel {
 		setUnadjusted();
 	}
 
+	/**
+	 * Sets a prefetcher which is asked for the image before the image file is
+	 * decoded by the panel itself.
+	 */
+	public void setPrefetcher(ImagePrefetcher prefetcher) {
+		this.prefetcher = prefetcher;
+	}
+
+	/**
+	 * Enables decoding with reduced resolution. The full resolution is loaded
+	 * in the background as soon as the user zooms in so that the decoded
+	 * pixels would be magnified.
+	 */
+	public void setSubsamplingEnabled(boolean state) {
+		subsamplingEnabled = state;
+	}
+
+	/**
+	 * Sets a cache for decoded images (possibly null). Cached images are not
+	 * rotated.
+	 */
+	public void setImageCache(LruCache<File, BufferedImage> imageCache) {
+		this.imageCache = imageCache;
+	}
+
+	/**
+	 * Sets a function which provides the embedded thumbnail of an image file
+	 * (JPEG data or null). If set, images which are not available immediately
+	 * are decoded in the background and the thumbnail is shown meanwhile.
+	 */
+	public void setThumbnailReader(Function<File, byte[]> thumbnailReader) {
+		this.thumbnailReader = thumbnailReader;
+	}
+
 	public void setImage(File imageFile, int orientation) {
 		if (imageFile == null) {
 			image = null;
 			this.imageFile = null;
+			requestedFile = null;
+			fullResolutionFile = null;
 			repaint();
 		} else if (!imageFile.equals(this.imageFile)) {
 			Image save = this.image;
-			try {
-				image = ImageIO.read(imageFile);
-				this.imageFile = imageFile;
-				if (image != null
-						&& (orientation == 6 || orientation == 8 || orientation == 3)) {
-					int w = orientation == 3 ? image.getWidth(null) : image
-							.getHeight(null);
-					int h = orientation == 3 ? image.getHeight(null) : image
-							.getWidth(null);
-					this.image = new BufferedImage(w, h,
-							BufferedImage.TYPE_3BYTE_BGR);
-					AffineTransform trans = new AffineTransform();
-					if (orientation == 6) {
-						trans.translate(this.image.getWidth(null), 0);
-						trans.rotate(Math.toRadians(90));
-					} else if (orientation == 8) {
-						trans.translate(0, this.image.getHeight(null));
-						trans.rotate(Math.toRadians(-90));
-					} else {
-						trans.translate(this.image.getWidth(null),
-								this.image.getHeight(null));
-						trans.rotate(Math.toRadians(180));
+			this.imageFile = imageFile;
+			requestedFile = imageFile;
+			imageOrientation = orientation;
+			fullResolutionFile = null;
+			BufferedImage img = imageCache != null ? imageCache.get(imageFile)
+					: null;
+			if (img == null) {
+				if (thumbnailReader != null
+						&& (prefetcher == null || !prefetcher.isDone(imageFile))) {
+					// the thumbnail is shown as soon as it has been read
+					loadInBackground(imageFile, false);
+				} else {
+					try {
+						img = readImage(imageFile);
+						if (imageCache != null && img != null)
+							imageCache.put(imageFile, img);
+					} catch (IOException ex) {
+						Exception e = new PersistenceException(
+								"Could not read image from file " + imageFile + ".", ex);
+						ErrorHandler.getInstance().handleError(e);
 					}
-					((Graphics2D) this.image.getGraphics()).drawImage(image,
-							trans, null);
-					image.flush();
 				}
-			} catch (IOException ex) {
-				Exception e = new PersistenceException(
-						"Could not read image from file " + imageFile + ".", ex);
-				ErrorHandler.getInstance().handleError(e);
 			}
-			if (save != null)
+			image = img;
+			updateImageSize();
+			if (save != null && imageCache == null)
 				save.flush();
 			setUnadjusted();
 			repaint();
 		}
 	}
 
+	/**
+	 * Shows an image which has been loaded by a subclass, possibly with
+	 * reduced resolution (e.g. the overview of a tiled image).
+	 * 
+	 * @param width
+	 *            Width of the image in full resolution
+	 * @param height
+	 *            Height of the image in full resolution
+	 */
+	protected void setImage(File imageFile, Image image, int width, int height) {
+		this.imageFile = imageFile;
+		requestedFile = imageFile;
+		fullResolutionFile = null;
+		this.image = image;
+		imageOrientation = 0;
+		imageWidth = width;
+		imageHeight = height;
+		imageResolution = image != null ? Math.min(1.0,
+				(double) image.getWidth(null) / width) : 1;
+		setUnadjusted();
+		repaint();
+	}
+
+	/**
+	 * Decodes the image file. If subsampling is enabled, the resolution is
+	 * reduced according to the current size of the panel.
+	 */
+	private BufferedImage readImage(File imageFile) throws IOException {
+		if (prefetcher != null)
+			return prefetcher.read(imageFile);
+		else if (subsamplingEnabled)
+			return ImageFileReader.read(imageFile, getImageViewWidth(),
+					getImageViewHeight());
+		else
+			return ImageIO.read(imageFile);
+	}
+
+	/**
+	 * Returns the thumbnail of the image file or null. Called by the loader
+	 * thread.
+	 */
+	private BufferedImage readThumbnail(File imageFile) {
+		byte[] data = thumbnailReader.apply(imageFile);
+		if (data != null) {
+			try {
+				return ImageIO.read(new ByteArrayInputStream(data));
+			} catch (IOException e) {
+				// damaged thumbnail - wait for the image
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Decodes the image file in the background. The result replaces the
+	 * current image if the file is still selected and the resolution is
+	 * higher. Scale and position are preserved. Unless the full resolution is
+	 * requested, size and thumbnail are read first, and the thumbnail is shown
+	 * until the image has been decoded.
+	 */
+	private void loadInBackground(File file, boolean fullResolution) {
+		loader.execute(() -> {
+			if (!file.equals(requestedFile))
+				return; // outdated
+			if (!fullResolution && thumbnailReader != null) {
+				readFullSize(file);
+				BufferedImage thumbnail = readThumbnail(file);
+				if (thumbnail != null)
+					SwingUtilities.invokeLater(() -> replaceImage(file,
+							thumbnail, false));
+			}
+			try {
+				BufferedImage img = fullResolution ? ImageIO.read(file)
+						: readImage(file);
+				SwingUtilities.invokeLater(() -> replaceImage(file, img,
+						!fullResolution));
+			} catch (IOException ex) {
+				Exception e = new PersistenceException(
+						"Could not read image from file " + file + ".", ex);
+				SwingUtilities.invokeLater(() -> ErrorHandler.getInstance()
+						.handleError(e));
+			}
+		});
+	}
+
+	private void replaceImage(File file, BufferedImage img, boolean cache) {
+		if (img == null || !file.equals(imageFile))
+			return;
+		if (cache && imageCache != null)
+			imageCache.put(file, img);
+		if (image == null) {
+			image = img;
+			updateImageSize();
+			setUnadjusted();
+		} else if (img.getWidth() > image.getWidth(null)) {
+			image = img;
+			imageResolution = Math.min(1.0, (double) getRotatedWidth(img)
+					/ imageWidth);
+		}
+		repaint();
+	}
+
+	/** Checks whether the orientation swaps width and height. */
+	private boolean isOrientationSwapped() {
+		return imageOrientation == 6 || imageOrientation == 8;
+	}
+
+	/** Returns the width of the image after rotation. */
+	private int getRotatedWidth(Image img) {
+		return isOrientationSwapped() ? img.getHeight(null) : img.getWidth(null);
+	}
+
+	/** Returns the height of the image after rotation. */
+	private int getRotatedHeight(Image img) {
+		return isOrientationSwapped() ? img.getWidth(null) : img.getHeight(null);
+	}
+
+	/**
+	 * Returns a transformation which maps pixels of the (unrotated) image to
+	 * view coordinates. It combines rotation according to the EXIF
+	 * orientation, scaling to full resolution, and the current view
+	 * transformation.
+	 */
+	private AffineTransform createImageTransform() {
+		int w = image.getWidth(null);
+		int h = image.getHeight(null);
+		AffineTransform result = new AffineTransform();
+		result.translate(imageRefPosX, imageRefPosY);
+		result.scale(scaleFactor * imageWidth / getRotatedWidth(image),
+				scaleFactor * imageHeight / getRotatedHeight(image));
+		if (imageOrientation == 6) {
+			result.translate(h, 0);
+			result.rotate(Math.toRadians(90));
+		} else if (imageOrientation == 8) {
+			result.translate(0, w);
+			result.rotate(Math.toRadians(-90));
+		} else if (imageOrientation == 3) {
+			result.translate(w, h);
+			result.rotate(Math.toRadians(180));
+		}
+		return result;
+	}
+
+	/**
+	 * Determines the full resolution size of the current image. If the size
+	 * is not known yet, the size of the decoded image is used, and the
+	 * header of the image file is read in the background.
+	 */
+	private void updateImageSize() {
+		imageResolution = 1;
+		if (image != null) {
+			imageWidth = getRotatedWidth(image);
+			imageHeight = getRotatedHeight(image);
+			if (subsamplingEnabled || thumbnailReader != null) {
+				Dimension size = fullSizes.get(imageFile);
+				if (size != null)
+					applyFullSize(size);
+				else
+					loadFullSizeInBackground(imageFile);
+			}
+		}
+	}
+
+	/**
+	 * Sets the image size to the specified full resolution size (before
+	 * rotation) if it is larger than the decoded image.
+	 */
+	private void applyFullSize(Dimension size) {
+		int w = isOrientationSwapped() ? size.height : size.width;
+		int h = isOrientationSwapped() ? size.width : size.height;
+		if (w > imageWidth) {
+			imageResolution = (double) imageWidth / w;
+			imageWidth = w;
+			imageHeight = h;
+		}
+	}
+
+	/**
+	 * Returns the full resolution size of the image file or null if it
+	 * cannot be read. Called by the loader thread.
+	 */
+	private Dimension readFullSize(File file) {
+		Dimension size = fullSizes.get(file);
+		if (size == null) {
+			try {
+				size = ImageFileReader.readSize(file);
+				fullSizes.put(file, size);
+			} catch (IOException e) {
+				// use the size of the decoded image
+			}
+		}
+		return size;
+	}
+
+	private void loadFullSizeInBackground(File file) {
+		loader.execute(() -> {
+			if (!file.equals(requestedFile))
+				return; // outdated
+			Dimension size = readFullSize(file);
+			if (size != null)
+				SwingUtilities.invokeLater(() -> onFullSizeLoaded(file, size));
+		});
+	}
+
+	/**
+	 * Updates the image size. The scale is adapted, so that the view does not
+	 * change.
+	 */
+	private void onFullSizeLoaded(File file, Dimension size) {
+		if (file.equals(imageFile) && image != null && imageResolution == 1) {
+			int oldWidth = imageWidth;
+			applyFullSize(size);
+			if (imageWidth != oldWidth) {
+				if (!Double.isNaN(scaleFactor))
+					scaleFactor *= (double) oldWidth / imageWidth;
+				repaint();
+			}
+		}
+	}
+
+	/**
+	 * Starts loading the full resolution of the current image if the decoded
+	 * pixels would be magnified at the current scale.
+	 */
+	private void checkResolution() {
+		if ((subsamplingEnabled || thumbnailReader != null) && image != null
+				&& imageResolution < 1 && scaleFactor > imageResolution * 1.01
+				&& !imageFile.equals(fullResolutionFile)) {
+			fullResolutionFile = imageFile;
+			loadInBackground(imageFile, true);
+		}
+	}
+
+	private int getImageViewWidth() {
+		return border != null ? viewWidth - border.left - border.right : 0;
+	}
+
+	private int getImageViewHeight() {
+		return border != null ? viewHeight - border.top - border.bottom : 0;
+	}
+
 	/**
 	 * Calls super implementation (for borders, background etc), updates panel
 	 * size values, adjusts the image, and prints it.
@@ -119,9 +471,79 @@ public class ImagePanel extends JPanel {
 			border = getBorder() != null ? getBorder().getBorderInsets(this)
 					: new Insets(0, 0, 0, 0);
 			setUnadjusted();
+			if (prefetcher != null && subsamplingEnabled)
+				prefetcher.setTargetSize(getImageViewWidth(),
+						getImageViewHeight());
 		}
 		adjust();
+		checkResolution();
+		paintBuffered(g);
+	}
+
+	/** Invalidates the back-buffer so that the next paint renders everything. */
+	@Override
+	public void repaint(long tm, int x, int y, int width, int height) {
+		backBufferValid = false;
+		super.repaint(tm, x, y, width, height);
+	}
+
+	/**
+	 * Paints the image area by means of the back-buffer. If only the image
+	 * position has changed since the buffer was rendered, the buffer content
+	 * is shifted and just the uncovered strips are rendered. Scaled graphics
+	 * (HiDPI) are painted directly, a buffer in device pixels would not match
+	 * the integer image positions.
+	 */
+	private void paintBuffered(Graphics g) {
+		AffineTransform tf = ((Graphics2D) g).getTransform();
+		int w = getImageViewWidth();
+		int h = getImageViewHeight();
+		if (tf.getScaleX() != 1 || tf.getScaleY() != 1 || w <= 0 || h <= 0) {
+			backBuffer = null;
+			paintImage(g);
+			return;
+		}
+		if (backBuffer == null || backBuffer.getWidth() != w
+				|| backBuffer.getHeight() != h) {
+			backBuffer = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+			backBufferValid = false;
+		}
+		int dx = imageRefPosX - backBufferRefPosX;
+		int dy = imageRefPosY - backBufferRefPosY;
+		Graphics2D bg = backBuffer.createGraphics();
+		bg.translate(-border.left, -border.top);
+		if (!backBufferValid || backBufferScale != scaleFactor
+				|| Math.abs(dx) >= w || Math.abs(dy) >= h) {
+			renderRegion(bg, border.left, border.top, w, h);
+		} else if (dx != 0 || dy != 0) {
+			bg.copyArea(border.left, border.top, w, h, dx, dy);
+			if (dx > 0)
+				renderRegion(bg, border.left, border.top, dx, h);
+			else if (dx < 0)
+				renderRegion(bg, border.left + w + dx, border.top, -dx, h);
+			if (dy > 0)
+				renderRegion(bg, border.left, border.top, w, dy);
+			else if (dy < 0)
+				renderRegion(bg, border.left, border.top + h + dy, w, -dy);
+		}
+		bg.dispose();
+		backBufferValid = true;
+		backBufferScale = scaleFactor;
+		backBufferRefPosX = imageRefPosX;
+		backBufferRefPosY = imageRefPosY;
+		g.drawImage(backBuffer, border.left, border.top, null);
+	}
+
+	/**
+	 * Renders the specified region (view coordinates) into the back-buffer.
+	 * <code>paintImage</code> can use the clip bounds to skip content outside
+	 * the region.
+	 */
+	private void renderRegion(Graphics2D bg, int x, int y, int width, int height) {
+		Graphics g = bg.create();
+		g.clipRect(x, y, width, height);
 		paintImage(g);
+		g.dispose();
 	}
 
 	/**
@@ -136,8 +558,8 @@ public class ImagePanel extends JPanel {
 
 	protected void adjustToFit() {
 		if (image != null && border != null) {
-			int iWidth = image.getWidth(this);
-			int iHeight = image.getHeight(this);
+			int iWidth = imageWidth;
+			int iHeight = imageHeight;
 			int maxWidth = viewWidth - border.left - border.right;
 			int maxHeight = viewHeight - border.top - border.bottom;
 			scaleFactor = Math.min(1.0 * maxWidth / iWidth, 1.0 * maxHeight
@@ -150,8 +572,8 @@ public class ImagePanel extends JPanel {
 	protected void adjustForScaleFactor1() {
 		if (image != null) {
 			scaleFactor = 1.0f;
-			int iWidth = image.getWidth(this);
-			int iHeight = image.getHeight(this);
+			int iWidth = imageWidth;
+			int iHeight = imageHeight;
 			imageRefPosX = (viewWidth - iWidth) / 2;
 			imageRefPosY = (viewHeight - iHeight) / 2;
 		}
@@ -171,8 +593,7 @@ public class ImagePanel extends JPanel {
 	}
 
 	protected void moveImageAndCheckBorders(int dx, int dy) {
-		Point2D pos = imageToView(new Point2D.Double(image.getWidth(null),
-				image.getHeight(null)));
+		Point2D pos = imageToView(new Point2D.Double(imageWidth, imageHeight));
 		if (dx > 0)
 			dx = Math.min(dx, border.left - imageRefPosX);
 		else if (dx < 0)
@@ -196,6 +617,17 @@ public class ImagePanel extends JPanel {
 		return new Point2D.Double(xView, yView);
 	}
 
+	/**
+	 * Transforms the first <code>count</code> image positions into view
+	 * positions in place.
+	 */
+	public void imageToView(double[] xs, double[] ys, int count) {
+		for (int i = 0; i < count; i++) {
+			xs[i] = imageRefPosX + xs[i] * scaleFactor;
+			ys[i] = imageRefPosY + ys[i] * scaleFactor;
+		}
+	}
+
 	protected void paintImage(Graphics g) {
 		int viewW = viewWidth - border.left - border.right;
 		int viewH = viewHeight - border.top - border.bottom;
@@ -203,10 +635,18 @@ public class ImagePanel extends JPanel {
 		((Graphics2D) g).setRenderingHint(RenderingHints.KEY_ANTIALIASING, // Anti-alias!
 		        RenderingHints.VALUE_ANTIALIAS_ON);
 		if (image != null) {
-			int imageW = round(image.getWidth(this) * scaleFactor);
-			int imageH = round(image.getHeight(this) * scaleFactor);
-			g.setClip(border.left, border.top, viewW, viewH);
-			g.drawImage(image, imageRefPosX, imageRefPosY, imageW, imageH, this);
+			int imageW = round(imageWidth * scaleFactor);
+			int imageH = round(imageHeight * scaleFactor);
+			g.clipRect(border.left, border.top, viewW, viewH);
+			BufferedImage scaled = getScaledImage(imageW, imageH);
+			if (scaled != null)
+				g.drawImage(scaled, imageRefPosX + scaledImageRegion.x,
+						imageRefPosY + scaledImageRegion.y, null);
+			else if (imageOrientation == 3 || isOrientationSwapped())
+				((Graphics2D) g).drawImage(image, createImageTransform(), this);
+			else
+				g.drawImage(image, imageRefPosX, imageRefPosY, imageW, imageH,
+						this);
 			g.clearRect(border.left, border.top, imageRefPosX - border.left,
 					viewH); // left
 			g.clearRect(border.left, border.top, viewW, imageRefPosY
@@ -217,6 +657,101 @@ public class ImagePanel extends JPanel {
 			g.clearRect(border.left, border.top, viewW, viewH);
 	}
 
+	/**
+	 * Returns a copy of the visible part of the image (plus a margin) at the
+	 * current scale, or null if the image is not downscaled. The copy is
+	 * reused until the scale changes or the view leaves the covered area.
+	 * 
+	 * @param imageW
+	 *            Width of the scaled image in view pixels
+	 * @param imageH
+	 *            Height of the scaled image in view pixels
+	 */
+	private BufferedImage getScaledImage(int imageW, int imageH) {
+		Rectangle bounds = new Rectangle(0, 0, imageW, imageH);
+		Rectangle view = new Rectangle(border.left - imageRefPosX, border.top
+				- imageRefPosY, getImageViewWidth(), getImageViewHeight())
+				.intersection(bounds);
+		if (!(image instanceof BufferedImage) || view.isEmpty()
+				|| scaleFactor * imageWidth / getRotatedWidth(image) >= 1) {
+			scaledImage = null;
+			scaledImageSource = null;
+			return null;
+		}
+		if (scaledImage == null || scaledImageSource != image
+				|| scaledImageScale != scaleFactor
+				|| !scaledImageRegion.contains(view)) {
+			Rectangle region = new Rectangle(view.x - SCALED_IMAGE_MARGIN,
+					view.y - SCALED_IMAGE_MARGIN, view.width + 2
+							* SCALED_IMAGE_MARGIN, view.height + 2
+							* SCALED_IMAGE_MARGIN).intersection(bounds);
+			scaledImage = createScaledImage((BufferedImage) image, region);
+			scaledImageSource = image;
+			scaledImageScale = scaleFactor;
+			scaledImageRegion = region;
+		}
+		return scaledImage;
+	}
+
+	/**
+	 * Scales the part of the image which is shown in the specified region.
+	 * The image is halved (bilinear interpolation of 2x2 pixels) until less
+	 * than a factor of two remains, so that all source pixels contribute to
+	 * the result. Rotation according to the orientation is applied in the
+	 * last step.
+	 */
+	private BufferedImage createScaledImage(BufferedImage src, Rectangle region) {
+		AffineTransform tf = createImageTransform();
+		tf.preConcatenate(AffineTransform.getTranslateInstance(-imageRefPosX
+				- region.x, -imageRefPosY - region.y));
+		Rectangle2D srcRegion;
+		try {
+			srcRegion = tf.createInverse().createTransformedShape(
+					new Rectangle(0, 0, region.width, region.height))
+					.getBounds2D();
+		} catch (NoninvertibleTransformException e) {
+			return null;
+		}
+		// crop with one pixel of context for interpolation
+		int x0 = Math.max(0, (int) Math.floor(srcRegion.getMinX()) - 1);
+		int y0 = Math.max(0, (int) Math.floor(srcRegion.getMinY()) - 1);
+		int x1 = Math.min(src.getWidth(), (int) Math.ceil(srcRegion.getMaxX()) + 1);
+		int y1 = Math.min(src.getHeight(), (int) Math.ceil(srcRegion.getMaxY()) + 1);
+		if (x1 <= x0 || y1 <= y0)
+			return null;
+		int type = src.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+				: BufferedImage.TYPE_INT_RGB;
+		BufferedImage img = src.getSubimage(x0, y0, x1 - x0, y1 - y0);
+		tf.translate(x0, y0);
+		double ratio = scaleFactor * imageWidth / getRotatedWidth(image);
+		while (ratio <= 0.5 && img.getWidth() > 1 && img.getHeight() > 1) {
+			BufferedImage half = new BufferedImage(img.getWidth() / 2,
+					img.getHeight() / 2, type);
+			drawScaled(half, img);
+			double fx = (double) img.getWidth() / half.getWidth();
+			tf.scale(fx, (double) img.getHeight() / half.getHeight());
+			ratio *= fx;
+			img = half;
+		}
+		BufferedImage result = new BufferedImage(region.width, region.height,
+				type);
+		Graphics2D g = result.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+				RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(img, tf, null);
+		g.dispose();
+		return result;
+	}
+
+	/** Scales the source image to the size of the target image. */
+	private static void drawScaled(BufferedImage target, BufferedImage src) {
+		Graphics2D g = target.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+				RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(src, 0, 0, target.getWidth(), target.getHeight(), null);
+		g.dispose();
+	}
+
 	protected static int round(double d) {
 		return (int) Math.round(d);
 	}
@@ -268,7 +803,7 @@ public class ImagePanel extends JPanel {
 					xp = xr;
 					yp = yr;
 					Graphics g = getGraphics();
-					paintImage(g);
+					paintBuffered(g);
 					g.dispose();
 				}
 			}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.photoviewer.swing.view;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import rl.util.cache.LruCache;
+import rl.util.image.ImageFileReader;
+
+/**
+ * Decodes images in a background thread before they are needed. Images which
+ * are requested by the image panel are taken from the prefetched images if
+ * available. If decoding is still in progress, the panel waits for it instead
+ * of decoding the same file again. If a target size is specified, images are
+ * decoded with reduced resolution.
+ *
+ * @author Ruediger Lunde
+ *
+ */
+public class ImagePrefetcher {
+
+	private ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "ImagePrefetcher");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private HashMap<File, Future<BufferedImage>> prefetchedImages = new HashMap<>();
+	/** Images which are already cached are not prefetched (possibly null). */
+	private LruCache<File, BufferedImage> imageCache;
+	private volatile int targetWidth;
+	private volatile int targetHeight;
+
+	public void setImageCache(LruCache<File, BufferedImage> imageCache) {
+		this.imageCache = imageCache;
+	}
+
+	/**
+	 * Sets the size of the view in which the images are shown. Value 0 disables
+	 * subsampling.
+	 */
+	public void setTargetSize(int width, int height) {
+		targetWidth = width;
+		targetHeight = height;
+	}
+
+	/**
+	 * Specifies the files to be decoded in advance, most important first.
+	 * Prefetched images which are not contained in the list are dropped.
+	 */
+	public synchronized void prefetch(List<File> files) {
+		for (File file : new ArrayList<>(prefetchedImages.keySet())) {
+			if (!files.contains(file))
+				prefetchedImages.remove(file).cancel(false);
+		}
+		for (File file : files) {
+			if (!prefetchedImages.containsKey(file)
+					&& (imageCache == null || !imageCache.containsKey(file)))
+				prefetchedImages.put(file, executor.submit(() -> decode(file)));
+		}
+	}
+
+	/** Checks whether the image of the file has already been prefetched. */
+	public synchronized boolean isDone(File file) {
+		Future<BufferedImage> future = prefetchedImages.get(file);
+		return future != null && future.isDone() && !future.isCancelled();
+	}
+
+	/**
+	 * Returns the image of the specified file. Prefetched images are used if
+	 * available, otherwise the file is decoded in the calling thread.
+	 */
+	public BufferedImage read(File file) throws IOException {
+		Future<BufferedImage> future;
+		synchronized (this) {
+			future = prefetchedImages.remove(file);
+		}
+		if (future != null && !future.isCancelled()) {
+			try {
+				return future.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				// otherwise try again below...
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return decode(file);
+	}
+
+	private BufferedImage decode(File file) throws IOException {
+		return ImageFileReader.read(file, targetWidth, targetHeight);
+	}
+}
@@ -8,29 +8,53 @@ import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Graphics;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import javax.imageio.ImageIO;
 import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JMenuItem;
 import javax.swing.JPopupMenu;
+import javax.swing.SwingUtilities;
 
 import rl.photoviewer.model.GeoRefPoint;
 import rl.photoviewer.model.IndexedGeoPoint;
 import rl.photoviewer.model.MapData;
 import rl.photoviewer.model.PVModel;
+import rl.photoviewer.model.PhotoClusters;
 import rl.photoviewer.model.PhotoMetadata;
 import rl.photoviewer.swing.controller.Controller;
+import rl.util.cache.LruCache;
+import rl.util.exceptions.ErrorHandler;
+import rl.util.exceptions.PersistenceException;
+import rl.util.image.ImageFileReader;
+import rl.util.image.TilePyramid;
 
 /**
  * Extended version of the <code>ImagePanel</code> for showing map images and
- * locating geotagged photos on the map.
+ * locating geotagged photos on the map. Very large map images are shown tile
+ * by tile. Only the tiles which are visible at the current scale are loaded,
+ * with the overview of the tile pyramid as background. Optionally, nearby
+ * photo positions are aggregated to cluster markers.
  * 
  * @author Ruediger Lunde
  */
@@ -40,12 +64,38 @@ public class MapImagePanel extends ImagePanel {
 	private Controller controller;
 	private PVModel model;
 
-	Set<? extends IndexedGeoPoint> allPhotoPositions;
+	List<? extends IndexedGeoPoint> allPhotoPositions;
 	private PhotoMetadata photoData; // caution: may be null
+	/** Reusable coordinate arrays for projecting all photo positions. */
+	private double[] photoLats = new double[0];
+	private double[] photoLons = new double[0];
+	private double[] photoXs = new double[0];
+	private double[] photoYs = new double[0];
 
 	private boolean photoChanged;
 
 	private boolean showAllPhotoPositions;
+	private boolean clusteringEnabled = true;
+	/** Photo positions closer than this view distance are aggregated. */
+	private final static int CLUSTER_SIZE = 20;
+
+	/** Budget of the tile cache in bytes. */
+	private final static long TILE_CACHE_SIZE = 64L * 1024 * 1024;
+	/** Tiles of the current map (null if the map is shown as one image). */
+	private TilePyramid pyramid;
+	private LruCache<File, BufferedImage> tileCache = new LruCache<>(
+			img -> (long) img.getWidth() * img.getHeight() * 4,
+			TILE_CACHE_SIZE);
+	/** Builds tile pyramids and loads tiles in the background. */
+	private ExecutorService tileLoader = Executors
+			.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "TileLoader");
+				thread.setDaemon(true);
+				return thread;
+			});
+	/** Tiles needed by the last paint, accessed by the loader thread. */
+	private volatile Set<File> visibleTiles = Collections.emptySet();
+	private Set<File> pendingTiles = ConcurrentHashMap.newKeySet();
 
 	public MapImagePanel(PVModel model, Controller controller) {
 		this.model = model;
@@ -62,12 +112,41 @@ public class MapImagePanel extends ImagePanel {
 		showAllPhotoPositions = b;
 	}
 
+	public boolean isClusteringEnabled() {
+		return clusteringEnabled;
+	}
+
+	/** Enables or disables aggregation of nearby photo positions. */
+	public void setClusteringEnabled(boolean b) {
+		clusteringEnabled = b;
+	}
+
+	/**
+	 * Returns the photo whose position is shown next to the specified view
+	 * position, or null if no photo position is close enough. Clusters are
+	 * represented by their photo with the lowest index.
+	 */
+	public IndexedGeoPoint findPhotoPositionAt(int xView, int yView) {
+		MapData mapData = model.getMapData();
+		if (allPhotoPositions == null || !mapData.hasData())
+			return null;
+		Point2D posImg = viewToImage(new Point2D.Double(xView, yView));
+		double radius = viewToImage(20);
+		double tolerance = viewToImage(5);
+		if (clusteringEnabled)
+			return mapData.getPhotoClusters(allPhotoPositions, scaleFactor, CLUSTER_SIZE)
+					.findPhotoAt(posImg.getX(), posImg.getY(), radius, tolerance);
+		else
+			return mapData.findPhotoPositionAt(allPhotoPositions, posImg.getX(), posImg.getY(), radius,
+					tolerance);
+	}
+
 	// photoData may be null
 	public void update(PhotoMetadata photoData,
-			Set<? extends IndexedGeoPoint> allPhotoPositions) {
+			List<? extends IndexedGeoPoint> allPhotoPositions) {
 		this.allPhotoPositions = allPhotoPositions;
 		if (imageFile != model.getMapData().getFile()) {
-			setImage(model.getMapData().getFile(), 0);
+			setMapImage(model.getMapData().getFile());
 		}
 		if (image != null && photoData != null) {
 			this.photoData = photoData;
@@ -78,6 +157,52 @@ public class MapImagePanel extends ImagePanel {
 		repaint();
 	}
 
+	/**
+	 * Shows the map image. Very large images are replaced by a tile pyramid,
+	 * which is built in the background when the map is shown for the first
+	 * time.
+	 */
+	private void setMapImage(File file) {
+		pyramid = null;
+		tileCache.clear();
+		if (file != null) {
+			try {
+				Dimension size = ImageFileReader.readSize(file);
+				if (TilePyramid.isTilingRecommended(size.width, size.height)) {
+					TilePyramid p = new TilePyramid(file, size.width,
+							size.height);
+					pyramid = p;
+					setImage(file, null, size.width, size.height);
+					tileLoader.execute(() -> openPyramid(p));
+					return;
+				}
+			} catch (IOException e) {
+				// reading the image will fail as well and report the error
+			}
+		}
+		setImage(file, 0);
+	}
+
+	/** Builds the pyramid if necessary and shows its overview. */
+	private void openPyramid(TilePyramid p) {
+		try {
+			if (!p.isComplete())
+				p.build();
+			BufferedImage overview = ImageIO.read(p.getOverviewFile());
+			SwingUtilities.invokeLater(() -> {
+				if (pyramid == p)
+					setImage(p.getImageFile(), overview, p.getWidth(),
+							p.getHeight());
+			});
+		} catch (IOException ex) {
+			Exception e = new PersistenceException(
+					"Could not create map tiles for file " + p.getImageFile()
+							+ ".", ex);
+			SwingUtilities.invokeLater(() -> ErrorHandler.getInstance()
+					.handleError(e));
+		}
+	}
+
 	protected void adjustForPhoto() {
 		if (model.getMapData().hasData() && photoData != null) {
 			double[] mp = model.getMapData().latLonToImagePos(photoData.getLat(),
@@ -120,19 +245,38 @@ public class MapImagePanel extends ImagePanel {
 		MapData mapData = model.getMapData();
 		int viewW = getWidth() - border.left - border.right;
 		int viewH = getHeight() - border.top - border.bottom;
-		g.setClip(border.left, border.top, viewW, viewH);
+		g.clipRect(border.left, border.top, viewW, viewH);
+		// only markers within the damaged region need to be drawn
+		Rectangle clip = g.getClipBounds();
+		paintTiles(g, clip);
 		for (GeoRefPoint p : mapData.getRefPoints()) {
 			drawRefPoint(g, p.getXImage(), p.getYImage(), getFont().getSize());
 		}
 		if (mapData.hasData()) {
-			if (isShowAllPhotoPositions()) {
-				for (IndexedGeoPoint pt : allPhotoPositions) {
-					if (!Double.isNaN(pt.getLat())) {
-						double[] p = mapData.latLonToImagePos(pt.getLat(),
-								pt.getLon());
-						drawPhotoPosition(g, p[0], p[1], getFont().getSize() / 2);
+			if (isShowAllPhotoPositions() && clusteringEnabled) {
+				PhotoClusters clusters = mapData.getPhotoClusters(allPhotoPositions, scaleFactor, CLUSTER_SIZE);
+				int count = clusters.getClusterCount();
+				ensureCapacity(count);
+				clusters.getPositions(photoXs, photoYs);
+				imageToView(photoXs, photoYs, count);
+				int size = getFont().getSize() / 2;
+				int clusterSize = getFont().getSize();
+				for (int i = 0; i < count; i++) {
+					if (clusters.getSize(i) > 1) {
+						// leave space for wide numbers
+						if (intersects(clip, photoXs[i], photoYs[i], 2 * clusterSize))
+							drawCluster(g, photoXs[i], photoYs[i], clusterSize, clusters.getSize(i));
+					} else if (intersects(clip, photoXs[i], photoYs[i], size)) {
+						drawPhotoPosition(g, photoXs[i], photoYs[i], size);
 					}
 				}
+			} else if (isShowAllPhotoPositions()) {
+				int count = projectPhotoPositions(mapData);
+				int size = getFont().getSize() / 2;
+				for (int i = 0; i < count; i++) {
+					if (!Double.isNaN(photoXs[i]) && intersects(clip, photoXs[i], photoYs[i], size))
+						drawPhotoPosition(g, photoXs[i], photoYs[i], size);
+				}
 			}
 			if (photoData != null && !Double.isNaN(photoData.getLat())) {
 				double[] mp = mapData.latLonToImagePos(photoData.getLat(),
@@ -142,6 +286,87 @@ public class MapImagePanel extends ImagePanel {
 		}
 	}
 
+	/**
+	 * Checks whether a marker of the specified size centered at the view
+	 * position touches the clip (null means unclipped).
+	 */
+	private static boolean intersects(Rectangle clip, double xView, double yView, int size) {
+		return clip == null || xView + size >= clip.x && xView - size <= clip.x + clip.width
+				&& yView + size >= clip.y && yView - size <= clip.y + clip.height;
+	}
+
+	/**
+	 * Paints the visible tiles of the level which fits best to the current
+	 * scale. Only tiles which intersect the clip are drawn. Missing tiles of
+	 * the whole view are requested from the tile loader.
+	 */
+	private void paintTiles(Graphics g, Rectangle clip) {
+		TilePyramid p = pyramid;
+		if (p == null || image == null)
+			return;
+		int level = p.chooseLevel(scaleFactor);
+		int span = p.getTileSpan(level);
+		Point2D min = viewToImage(new Point2D.Double(border.left, border.top));
+		Point2D max = viewToImage(new Point2D.Double(getWidth() - border.right,
+				getHeight() - border.bottom));
+		int col0 = Math.max(0, (int) Math.floor(min.getX() / span));
+		int col1 = Math.min(p.getColumnCount(level) - 1,
+				(int) Math.floor(max.getX() / span));
+		int row0 = Math.max(0, (int) Math.floor(min.getY() / span));
+		int row1 = Math.min(p.getRowCount(level) - 1,
+				(int) Math.floor(max.getY() / span));
+		((Graphics2D) g).setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+				RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		Set<File> visible = new HashSet<>();
+		List<File> missing = new ArrayList<>();
+		for (int row = row0; row <= row1; row++) {
+			for (int col = col0; col <= col1; col++) {
+				File file = p.getTileFile(level, col, row);
+				visible.add(file);
+				BufferedImage tile = tileCache.get(file);
+				if (tile != null) {
+					Point2D p0 = imageToView(new Point2D.Double(col * span, row
+							* span));
+					Point2D p1 = imageToView(new Point2D.Double(Math.min(
+							(col + 1) * span, p.getWidth()), Math.min((row + 1)
+							* span, p.getHeight())));
+					int x = round(p0.getX());
+					int y = round(p0.getY());
+					if (clip == null || clip.intersects(x, y, round(p1.getX()) - x,
+							round(p1.getY()) - y))
+						g.drawImage(tile, x, y, round(p1.getX()) - x,
+								round(p1.getY()) - y, null);
+				} else {
+					missing.add(file);
+				}
+			}
+		}
+		visibleTiles = visible;
+		for (File file : missing)
+			requestTile(file);
+	}
+
+	/** Loads the tile in the background and repaints when it is available. */
+	private void requestTile(File file) {
+		if (pendingTiles.add(file)) {
+			tileLoader.execute(() -> {
+				try {
+					if (visibleTiles.contains(file)) {
+						BufferedImage tile = ImageIO.read(file);
+						if (tile != null) {
+							tileCache.put(file, tile);
+							SwingUtilities.invokeLater(this::repaint);
+						}
+					}
+				} catch (IOException e) {
+					// the overview remains visible in this area
+				} finally {
+					pendingTiles.remove(file);
+				}
+			});
+		}
+	}
+
 	private void drawRefPoint(Graphics g, double xImage, double yImage, int size) {
 		Point2D p = imageToView(new Point2D.Double(xImage, yImage));
 		((Graphics2D) g).setStroke(new BasicStroke(3));
@@ -156,16 +381,58 @@ public class MapImagePanel extends ImagePanel {
 		}
 	}
 
-	private void drawPhotoPosition(Graphics g, double xImage, double yImage,
+	/**
+	 * Projects all photo positions into view coordinates. The results are
+	 * stored in <code>photoXs</code> and <code>photoYs</code>.
+	 * 
+	 * @return The number of projected positions.
+	 */
+	private int projectPhotoPositions(MapData mapData) {
+		int count = allPhotoPositions.size();
+		ensureCapacity(count);
+		for (int i = 0; i < count; i++) {
+			IndexedGeoPoint pt = allPhotoPositions.get(i);
+			photoLats[i] = pt.getLat();
+			photoLons[i] = pt.getLon();
+		}
+		mapData.latLonToImagePos(photoLats, photoLons, photoXs, photoYs, count);
+		imageToView(photoXs, photoYs, count);
+		return count;
+	}
+
+	private void ensureCapacity(int count) {
+		if (photoLats.length < count) {
+			photoLats = new double[count];
+			photoLons = new double[count];
+			photoXs = new double[count];
+			photoYs = new double[count];
+		}
+	}
+
+	/** Draws a cluster marker showing the number of photos. */
+	private void drawCluster(Graphics g, double xView, double yView, int size,
+			int photoCount) {
+		int x = round(xView - size / 2.0);
+		int y = round(yView - size / 2.0);
+		g.setColor(Color.DARK_GRAY);
+		g.fillOval(x + 1, y + 1, size, size);
+		g.setColor(Color.WHITE);
+		g.fillOval(x - 1, y - 1, size, size);
+		String text = Integer.toString(photoCount);
+		FontMetrics fm = g.getFontMetrics();
+		g.setColor(Color.BLACK);
+		g.drawString(text, round(xView - fm.stringWidth(text) / 2.0) - 1,
+				round(yView + (fm.getAscent() - fm.getDescent()) / 2.0) - 1);
+	}
+
+	private void drawPhotoPosition(Graphics g, double xView, double yView,
 			int size) {
-		Point2D p = imageToView(new Point2D.Double(xImage, yImage));
-		((Graphics2D) g).setStroke(new BasicStroke(1));
 		g.setColor(Color.DARK_GRAY);
-		g.fillRect(round(p.getX() - size / 2.0) + 1, round(p.getY() - size
-				/ 2.0) + 1, size, size);
+		g.fillRect(round(xView - size / 2.0) + 1, round(yView - size / 2.0) + 1,
+				size, size);
 		g.setColor(Color.WHITE);
-		g.fillRect(round(p.getX() - size / 2.0) - 1, round(p.getY() - size
-				/ 2.0) - 1, size, size);
+		g.fillRect(round(xView - size / 2.0) - 1, round(yView - size / 2.0) - 1,
+				size, size);
 	}
 
 	private void drawMarker(Graphics g, double xImage, double yImage, int size) {
@@ -192,6 +459,7 @@ public class MapImagePanel extends ImagePanel {
 		GeoRefPoint nextRefPoint;
 		JMenuItem refPointItem;
 		JCheckBoxMenuItem allPositionsCheckBox;
+		JCheckBoxMenuItem clusterCheckBox;
 
 		private MyPopup() {
 			refPointItem = new JMenuItem();
@@ -201,6 +469,9 @@ public class MapImagePanel extends ImagePanel {
 					"Show Visible Photo Positions");
 			allPositionsCheckBox.addActionListener(this);
 			add(allPositionsCheckBox);
+			clusterCheckBox = new JCheckBoxMenuItem("Cluster Photo Positions");
+			clusterCheckBox.addActionListener(this);
+			add(clusterCheckBox);
 			addSeparator();
 			JMenuItem item;
 			for (File file : model.getMapData().getAllMapFiles()) {
@@ -220,6 +491,7 @@ public class MapImagePanel extends ImagePanel {
 			refPointItem.setText((nextRefPoint == null ? "Set" : "Remove")
 					+ " Reference Point Here");
 			allPositionsCheckBox.setSelected(isShowAllPhotoPositions());
+			clusterCheckBox.setSelected(isClusteringEnabled());
 			super.show(invoker, x, y);
 		}
 
@@ -238,6 +510,9 @@ public class MapImagePanel extends ImagePanel {
 			} else if (e.getSource() == allPositionsCheckBox) {
 				setShowAllPhotoPositions(allPositionsCheckBox.isSelected());
 				MapImagePanel.this.repaint();
+			} else if (e.getSource() == clusterCheckBox) {
+				setClusteringEnabled(clusterCheckBox.isSelected());
+				MapImagePanel.this.repaint();
 			}
 		}
 	}
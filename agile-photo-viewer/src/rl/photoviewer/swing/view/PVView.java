@@ -9,6 +9,7 @@ import rl.photoviewer.model.PhotoMetadata;
 import rl.photoviewer.swing.AgilePhotoViewerApp;
 import rl.photoviewer.swing.controller.ControllerProxy;
 import rl.photoviewer.swing.controller.PVController;
+import rl.util.cache.LruCache;
 import rl.util.exceptions.ErrorHandler;
 import rl.util.exceptions.PersistenceException;
 import rl.util.persistence.PropertyManager;
@@ -18,9 +19,11 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
+import java.util.List;
 
 /**
  * Defines the main frame of the Agile Photo Viewer application. It consists of
@@ -32,6 +35,10 @@ import java.io.File;
  */
 public class PVView implements PropertyChangeListener {
 
+	/** Default budget of the image cache in megabytes. */
+	static final int DEFAULT_IMAGE_CACHE_SIZE_MB = 256;
+	private static final long MB = 1024 * 1024;
+
 	protected JFrame frame;
 	private JSplitPane splitPane;
 	private JTabbedPane tabbedPane;
@@ -40,9 +47,16 @@ public class PVView implements PropertyChangeListener {
 	private VisibilityPanel visibilityPanel;
 	private StatusArea statusArea;
 	private ImagePanel photoPanel;
+	private ImagePrefetcher prefetcher = new ImagePrefetcher();
+	/** Decoded photos, budget in bytes. */
+	private LruCache<File, BufferedImage> imageCache = new LruCache<>(
+			img -> (long) img.getWidth() * img.getHeight()
+					* ((img.getColorModel().getPixelSize() + 7) / 8),
+			DEFAULT_IMAGE_CACHE_SIZE_MB * MB);
 	private MapImagePanel mapImagePanel;
 	private JFileChooser inputFileChooser;
 	private JFileChooser outputFileChooser;
+	private JFileChooser libraryChooser;
 
 	private ControllerProxy controller;
 	private PVModel model;
@@ -66,6 +80,11 @@ public class PVView implements PropertyChangeListener {
 		frame.add(splitPane);
 
 		photoPanel = new ImagePanel();
+		photoPanel.setPrefetcher(prefetcher);
+		photoPanel.setSubsamplingEnabled(true);
+		photoPanel.setThumbnailReader(model::readThumbnailData);
+		photoPanel.setImageCache(imageCache);
+		prefetcher.setImageCache(imageCache);
 		photoPanel.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 5));
 		photoPanel.addMouseListener(controller);
 
@@ -79,6 +98,8 @@ public class PVView implements PropertyChangeListener {
 		outputFileChooser = new JFileChooser();
 		outputFileChooser
 				.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+		libraryChooser = new JFileChooser();
+		libraryChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
 		
 		JPanel leftPanel = new JPanel(new GridBagLayout());
 		GridBagConstraints constr = new GridBagConstraints();
@@ -139,6 +160,8 @@ public class PVView implements PropertyChangeListener {
 					"gui.sortbydate", false));
 			mapImagePanel.setShowAllPhotoPositions(pm.getBooleanValue(
 					"gui.showallphotopositions", true));
+			mapImagePanel.setClusteringEnabled(pm.getBooleanValue(
+					"gui.clusterphotopositions", true));
 			infoPanel.setShowCaptionInStatus(pm.getBooleanValue(
 					"gui.showcaptioninstatus", true));
 			float size = (float) pm.getDoubleValue("gui.fontsize", 12);
@@ -150,6 +173,7 @@ public class PVView implements PropertyChangeListener {
 				SwingUtilities.updateComponentTreeUI(frame.getContentPane());
 				SwingUtilities.updateComponentTreeUI(inputFileChooser);
 				SwingUtilities.updateComponentTreeUI(outputFileChooser);
+				SwingUtilities.updateComponentTreeUI(libraryChooser);
 				SwingUtilities.updateComponentTreeUI(ctrlPanel.popup);
 				Dimension d = ctrlPanel.firstButton.getPreferredSize();
 				ctrlPanel.slideShowSpinner.setPreferredSize(d);
@@ -161,9 +185,30 @@ public class PVView implements PropertyChangeListener {
 			String outputFileName = pm.getStringValue("gui.outputfile", null);
 			if (outputFileName != null)
 				outputFileChooser.setSelectedFile(new File(outputFileName));
+			model.setScanThreadCount(pm.getIntValue("model.scanthreads",
+					model.getScanThreadCount()));
+			model.setPrefetchCounts(pm.getIntValue("model.prefetchnext",
+					model.getPrefetchNextCount()), pm.getIntValue(
+					"model.prefetchprev", model.getPrefetchPrevCount()));
+			model.setExportThreadCount(pm.getIntValue("model.exportthreads",
+					model.getExportThreadCount()));
+			model.setExportChecksumEnabled(pm.getBooleanValue(
+					"model.exportchecksum", true));
+			model.setExportMaxEdge(pm.getIntValue("model.exportmaxedge",
+					model.getExportMaxEdge()));
+			model.setExportQuality((float) pm.getDoubleValue(
+					"model.exportquality", model.getExportQuality()));
+			imageCache.setMaxSize(pm.getIntValue("gui.imagecachesize",
+					DEFAULT_IMAGE_CACHE_SIZE_MB) * MB);
 			model.loadMapParamLookup();
-			String fileName = pm.getStringValue("model.currfile", null);
-			if (fileName != null && model.getCurrDirectory() == null) {
+			model.loadMetadataIndex();
+			boolean restorePhoto = model.getCurrDirectory() == null;
+			String fileName = pm.getStringValue("model.library", "");
+			if (restorePhoto && !fileName.isEmpty()
+					&& new File(fileName).isDirectory())
+				model.openLibrary(new File(fileName));
+			fileName = pm.getStringValue("model.currfile", null);
+			if (fileName != null && restorePhoto) {
 				File f = new File(fileName);
 				if (f.exists())
 					model.selectPhoto(f);
@@ -189,8 +234,18 @@ public class PVView implements PropertyChangeListener {
 				splitPane.getDividerLocation());
 		pm.setValue("gui.slideshowsec", ctrlPanel.getSlideShowSec());
 		pm.setValue("gui.sortbydate", ctrlPanel.isSortByDateSelected());
+		pm.setValue("model.scanthreads", model.getScanThreadCount());
+		pm.setValue("model.prefetchnext", model.getPrefetchNextCount());
+		pm.setValue("model.prefetchprev", model.getPrefetchPrevCount());
+		pm.setValue("model.exportthreads", model.getExportThreadCount());
+		pm.setValue("model.exportchecksum", model.isExportChecksumEnabled());
+		pm.setValue("model.exportmaxedge", model.getExportMaxEdge());
+		pm.setValue("model.exportquality", model.getExportQuality());
+		pm.setValue("gui.imagecachesize", imageCache.getMaxSize() / MB);
 		pm.setValue("gui.showallphotopositions",
 				mapImagePanel.isShowAllPhotoPositions());
+		pm.setValue("gui.clusterphotopositions",
+				mapImagePanel.isClusteringEnabled());
 		pm.setValue("gui.fontsize", statusArea.getFont().getSize());
 		pm.setValue("gui.showcaptioninstatus",
 				infoPanel.isShowCaptionInStatus());
@@ -202,10 +257,13 @@ public class PVView implements PropertyChangeListener {
 			pm.setValue("gui.outputfile", model.getCurrDirectory());
 		if (model.getSelectedPhoto() != null)
 			pm.setValue("model.currfile", model.getSelectedPhoto());
+		pm.setValue("model.library", model.isLibraryMode() ? model
+				.getCurrDirectory().getAbsolutePath() : "");
 		file = model.getMapData().getFile();
 		pm.setValue("model.currmapfile", file != null ? file.getAbsolutePath()
 				: "");
 		model.saveMapParamLookup();
+		model.saveMetadataIndex();
 		try {
 			pm.saveSessionProperties();
 		} catch (PersistenceException ex) {
@@ -263,6 +321,17 @@ public class PVView implements PropertyChangeListener {
 		return result;
 	}
 
+	/** Asks the user for the root directory of a photo library. */
+	public File showLibraryChooser(File dir) {
+		File result = null;
+		if (dir != null)
+			libraryChooser.setSelectedFile(dir);
+		if (JFileChooser.APPROVE_OPTION == libraryChooser.showDialog(frame,
+				"Open Library"))
+			result = libraryChooser.getSelectedFile();
+		return result;
+	}
+
 	public File showOutputFileChooser(int fileCount) {
 		File result = null;
 		if (JFileChooser.APPROVE_OPTION == outputFileChooser.showDialog(frame,
@@ -277,13 +346,28 @@ public class PVView implements PropertyChangeListener {
 
 	@Override
 	public void propertyChange(PropertyChangeEvent event) {
+		if (event.getPropertyName() == PVModel.EXPORT_PROP) {
+			statusArea.setStatus(model.getExportProgress().getStatusText());
+			ctrlPanel.setExportRunning(model.isExporting());
+			return;
+		}
+		if (event.getNewValue() instanceof List) {
+			// photos have been modified or deleted on disk
+			for (Object file : (List<?>) event.getNewValue()) {
+				imageCache.remove((File) file);
+				if (file.equals(model.getSelectedPhoto()))
+					photoPanel.setImage(null, 0);
+			}
+		}
 		PhotoMetadata data = model.getSelectedPhotoData();
 		infoPanel.update(data);
 		mapImagePanel.update(data, model.getVisiblePhotoPositions());
 		String txt = "Keyword Expression:\n"
 				+ model.getVisibilityExpression().toString() + "\n"
-				+ model.getVisiblePhotoCount() + " photo(s) visible.";
+				+ model.getVisiblePhotoCount() + " photo(s) visible."
+				+ (model.isLoadingMetadata() ? " Loading..." : "");
 		visibilityPanel.setText(txt);
 		photoPanel.setImage(model.getSelectedPhoto(), PhotoMetadata.getOrientation(data));
+		prefetcher.prefetch(model.getPhotosToPrefetch());
 	}
 }
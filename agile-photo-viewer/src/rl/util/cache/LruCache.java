@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.util.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Thread-safe cache with least-recently-used eviction strategy. The capacity
+ * of the cache is not given by a number of entries but by a size budget. The
+ * size of each value is computed by a size function (e.g. the number of bytes
+ * needed to store the pixels of a decoded image). Hit, miss, and eviction
+ * counters support the choice of a reasonable budget.
+ *
+ * @author Ruediger Lunde
+ *
+ * @param <K>
+ *            Type of the keys
+ * @param <V>
+ *            Type of the cached values
+ */
+public class LruCache<K, V> {
+
+	private final ToLongFunction<V> sizeFunction;
+	/** Entries in access order, least recently used first. */
+	private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long maxSize;
+	private long size;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * @param sizeFunction
+	 *            Computes the size of a value in the unit of the budget.
+	 * @param maxSize
+	 *            Size budget of the cache.
+	 */
+	public LruCache(ToLongFunction<V> sizeFunction, long maxSize) {
+		this.sizeFunction = sizeFunction;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Returns the value for the specified key and marks it as recently used.
+	 * Returns null if the cache does not contain the key.
+	 */
+	public synchronized V get(K key) {
+		V result = entries.get(key);
+		if (result != null)
+			hitCount++;
+		else
+			missCount++;
+		return result;
+	}
+
+	/**
+	 * Checks whether the cache contains the key. Neither the counters nor the
+	 * access order are affected.
+	 */
+	public synchronized boolean containsKey(K key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * Adds a value to the cache and evicts least recently used values until
+	 * the budget is met. Values which are larger than the budget are not
+	 * cached.
+	 */
+	public synchronized void put(K key, V value) {
+		remove(key);
+		long valueSize = sizeFunction.applyAsLong(value);
+		if (valueSize <= maxSize) {
+			entries.put(key, value);
+			size += valueSize;
+			trimToSize();
+		}
+	}
+
+	public synchronized V remove(K key) {
+		V result = entries.remove(key);
+		if (result != null)
+			size -= sizeFunction.applyAsLong(result);
+		return result;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	/** Changes the budget. Values are evicted if necessary. */
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		trimToSize();
+	}
+
+	/** Returns the sum of the sizes of all cached values. */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "LruCache [entries=" + entries.size() + ", size=" + size
+				+ ", maxSize=" + maxSize + ", hits=" + hitCount + ", misses="
+				+ missCount + ", evictions=" + evictionCount + "]";
+	}
+
+	private void trimToSize() {
+		Iterator<Map.Entry<K, V>> iter = entries.entrySet().iterator();
+		while (size > maxSize && iter.hasNext()) {
+			size -= sizeFunction.applyAsLong(iter.next().getValue());
+			iter.remove();
+			evictionCount++;
+		}
+	}
+}
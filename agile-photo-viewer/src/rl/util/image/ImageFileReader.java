@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.util.image;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Provides methods to read images with reduced resolution. Large photos which
+ * are shown in a small view are decoded with source subsampling. This saves
+ * decoding time and memory without visible loss of quality.
+ *
+ * @author Ruediger Lunde
+ *
+ */
+public class ImageFileReader {
+
+	/**
+	 * Returns the size of the image in the specified file. Only the header of
+	 * the file is read.
+	 */
+	public static Dimension readSize(File file) throws IOException {
+		try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+			ImageReader reader = getReader(file, iis);
+			try {
+				reader.setInput(iis, true, true);
+				return new Dimension(reader.getWidth(0), reader.getHeight(0));
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Returns the largest subsampling factor which still provides enough
+	 * pixels to show the image scaled-to-fit in a view of the specified size.
+	 * The result does not depend on the orientation of the image, so rotated
+	 * images are covered as well. Views with size 0 result in factor 1.
+	 */
+	public static int computeSubsampling(int imageWidth, int imageHeight,
+			double viewWidth, double viewHeight) {
+		if (imageWidth <= 0 || imageHeight <= 0 || viewWidth <= 0
+				|| viewHeight <= 0)
+			return 1;
+		double scale = Math.max(
+				Math.min(viewWidth / imageWidth, viewHeight / imageHeight),
+				Math.min(viewWidth / imageHeight, viewHeight / imageWidth));
+		return Math.max(1, (int) Math.floor(1.0 / scale));
+	}
+
+	/**
+	 * Reads the image with a subsampling factor which fits to the specified
+	 * view size.
+	 */
+	public static BufferedImage read(File file, double viewWidth,
+			double viewHeight) throws IOException {
+		if (viewWidth <= 0 || viewHeight <= 0)
+			return ImageIO.read(file);
+		Dimension size = readSize(file);
+		return read(file, computeSubsampling(size.width, size.height,
+				viewWidth, viewHeight));
+	}
+
+	/**
+	 * Reads the image using only every n-th pixel in each direction.
+	 *
+	 * @param subsampling
+	 *            Factor n, value 1 reads the full image.
+	 */
+	public static BufferedImage read(File file, int subsampling)
+			throws IOException {
+		if (subsampling <= 1)
+			return ImageIO.read(file);
+		try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+			ImageReader reader = getReader(file, iis);
+			try {
+				reader.setInput(iis, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	private static ImageReader getReader(File file, ImageInputStream iis)
+			throws IOException {
+		if (iis == null)
+			throw new IOException("Cannot open file " + file + ".");
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+		if (!readers.hasNext())
+			throw new IOException("Unsupported image format: " + file + ".");
+		return readers.next();
+	}
+}
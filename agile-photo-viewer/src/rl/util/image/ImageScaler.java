@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.util.image;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Provides methods to create downscaled JPEG copies of images. The source is
+ * decoded with source subsampling, so that memory consumption depends on the
+ * target size rather than on the size of the source. Subsampling stops at
+ * twice the target size, the remaining reduction is done by repeated
+ * bilinear halving, which avoids aliasing.
+ *
+ * @author Ruediger Lunde
+ *
+ */
+public class ImageScaler {
+
+	/**
+	 * Reads the image and scales it so that its longer edge does not exceed
+	 * the specified length. Smaller images are not enlarged. Rotation
+	 * according to the EXIF orientation (values 3, 6, 8) is applied.
+	 */
+	public static BufferedImage readScaled(File file, int maxEdge,
+			int orientation) throws IOException {
+		Dimension size = ImageFileReader.readSize(file);
+		int subsampling = ImageFileReader.computeSubsampling(size.width,
+				size.height, 2 * maxEdge, 2 * maxEdge);
+		BufferedImage img = ImageFileReader.read(file, subsampling);
+		if (img == null)
+			throw new IOException("Unsupported image format: " + file + ".");
+		double scale = Math.min(1.0,
+				(double) maxEdge / Math.max(img.getWidth(), img.getHeight()));
+		while (scale <= 0.5 && img.getWidth() > 1 && img.getHeight() > 1) {
+			img = scale(img, img.getWidth() / 2, img.getHeight() / 2, 0);
+			scale *= 2;
+		}
+		return scale(img, (int) Math.round(img.getWidth() * scale),
+				(int) Math.round(img.getHeight() * scale), orientation);
+	}
+
+	/**
+	 * Writes the image in JPEG format.
+	 *
+	 * @param quality
+	 *            Value between 0 and 1.
+	 */
+	public static void writeJpeg(BufferedImage img, OutputStream out,
+			float quality) throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+		if (!writers.hasNext())
+			throw new IOException("No JPEG writer available.");
+		ImageWriter writer = writers.next();
+		try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+			writer.setOutput(ios);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality);
+			writer.write(null, new IIOImage(img, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	/**
+	 * Scales the image to the specified size (before rotation) with bilinear
+	 * interpolation and rotates it. The result is an RGB image without alpha.
+	 */
+	private static BufferedImage scale(BufferedImage img, int width,
+			int height, int orientation) {
+		width = Math.max(1, width);
+		height = Math.max(1, height);
+		boolean swapped = orientation == 6 || orientation == 8;
+		BufferedImage result = new BufferedImage(swapped ? height : width,
+				swapped ? width : height, BufferedImage.TYPE_INT_RGB);
+		AffineTransform tf = new AffineTransform();
+		if (orientation == 6) {
+			tf.translate(height, 0);
+			tf.rotate(Math.toRadians(90));
+		} else if (orientation == 8) {
+			tf.translate(0, width);
+			tf.rotate(Math.toRadians(-90));
+		} else if (orientation == 3) {
+			tf.translate(width, height);
+			tf.rotate(Math.toRadians(180));
+		}
+		tf.scale((double) width / img.getWidth(), (double) height
+				/ img.getHeight());
+		Graphics2D g = result.createGraphics();
+		if (img.getColorModel().hasAlpha()) {
+			g.setColor(Color.WHITE);
+			g.fillRect(0, 0, result.getWidth(), result.getHeight());
+		}
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+				RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(img, tf, null);
+		g.dispose();
+		return result;
+	}
+}
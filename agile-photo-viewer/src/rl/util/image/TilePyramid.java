@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2013-2016 Ruediger Lunde
+ * Licensed under the GNU General Public License, Version 3
+ */
+package rl.util.image;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Properties;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+import rl.util.persistence.PropertyManager;
+
+/**
+ * Multi-resolution tile representation of a very large image, stored on disk.
+ * Level 0 contains tiles in full resolution, each further level halves the
+ * resolution, and the last level consists of a single tile which can serve as
+ * overview. Views load only the tiles which are visible at the current scale,
+ * so memory consumption does not depend on the size of the image.
+ * <p>
+ * The pyramid is built once per image file (identified by path, size and
+ * modification time) and stored in a subdirectory of the application data
+ * directory. Building decodes the image once from top to bottom and writes
+ * the tiles row by row, so the complete image is never held in memory. The
+ * directory is used as cache: when it grows beyond a maximal size, the
+ * pyramids which have not been used for the longest time are deleted.
+ * </p>
+ *
+ * @author Ruediger Lunde
+ *
+ */
+public class TilePyramid {
+
+	public static final int TILE_SIZE = 512;
+	/** Images with more pixels should be shown tile by tile. */
+	private static final long MIN_PIXEL_COUNT = 32L * 1024 * 1024;
+	/** Height of the strips (in tiles) which are read when building level 0. */
+	private static final int STRIP_TILES = 2;
+	private static final String TILE_DIR_NAME = "map-tiles";
+	private static final String INFO_FILE_NAME = "pyramid.properties";
+	/** Maximal size of all pyramids in the tile directory (in bytes). */
+	private static final long MAX_CACHE_SIZE = 1024L * 1024 * 1024;
+
+	private final File imageFile;
+	private final int width;
+	private final int height;
+	private final int levelCount;
+	private final File directory;
+
+	/**
+	 * Creates a pyramid for the specified image. The size must be the size of
+	 * the image in full resolution.
+	 */
+	public TilePyramid(File imageFile, int width, int height) {
+		this.imageFile = imageFile;
+		this.width = width;
+		this.height = height;
+		int levels = 1;
+		while (Math.max(width, height) > (TILE_SIZE << (levels - 1)))
+			levels++;
+		levelCount = levels;
+		String key = Integer.toHexString((imageFile.getAbsolutePath() + ";"
+				+ imageFile.length() + ";" + imageFile.lastModified()).hashCode());
+		directory = new File(getTileDirectory(), imageFile.getName() + "-" + key);
+	}
+
+	/** Checks whether an image is large enough to be shown tile by tile. */
+	public static boolean isTilingRecommended(int width, int height) {
+		return (long) width * height > MIN_PIXEL_COUNT;
+	}
+
+	public File getImageFile() {
+		return imageFile;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getLevelCount() {
+		return levelCount;
+	}
+
+	/** Returns the number of full resolution pixels covered by a tile side. */
+	public int getTileSpan(int level) {
+		return TILE_SIZE << level;
+	}
+
+	public int getColumnCount(int level) {
+		return (width + getTileSpan(level) - 1) / getTileSpan(level);
+	}
+
+	public int getRowCount(int level) {
+		return (height + getTileSpan(level) - 1) / getTileSpan(level);
+	}
+
+	/**
+	 * Returns the level with the lowest resolution which still provides at
+	 * least one tile pixel per view pixel.
+	 *
+	 * @param scale
+	 *            View pixels per full resolution pixel.
+	 */
+	public int chooseLevel(double scale) {
+		int level = 0;
+		while (level < levelCount - 1 && scale * (1 << (level + 1)) <= 1.0)
+			level++;
+		return level;
+	}
+
+	public File getTileFile(int level, int col, int row) {
+		return new File(directory, level + "_" + col + "_" + row + ".jpg");
+	}
+
+	/** Returns the file of the single tile of the last level. */
+	public File getOverviewFile() {
+		return getTileFile(levelCount - 1, 0, 0);
+	}
+
+	/**
+	 * Checks whether the pyramid has already been built. A complete pyramid
+	 * is marked as recently used.
+	 */
+	public boolean isComplete() {
+		File infoFile = new File(directory, INFO_FILE_NAME);
+		if (infoFile.exists()) {
+			Properties info = new Properties();
+			try (InputStream in = new FileInputStream(infoFile)) {
+				info.load(in);
+				if (Integer.toString(width).equals(info.getProperty("width"))
+						&& Integer.toString(height).equals(info.getProperty("height"))
+						&& Integer.toString(TILE_SIZE).equals(info.getProperty("tilesize"))) {
+					directory.setLastModified(System.currentTimeMillis());
+					return true;
+				}
+			} catch (IOException e) {
+				// build again
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Creates all tiles. This may take a while for large images, so the method
+	 * should be called in a background thread.
+	 */
+	public void build() throws IOException {
+		if (!directory.exists() && !directory.mkdirs())
+			throw new IOException("Cannot create directory " + directory + ".");
+		buildLevel0();
+		for (int level = 1; level < levelCount; level++)
+			buildLevel(level);
+		Properties info = new Properties();
+		info.setProperty("image", imageFile.getAbsolutePath());
+		info.setProperty("width", Integer.toString(width));
+		info.setProperty("height", Integer.toString(height));
+		info.setProperty("tilesize", Integer.toString(TILE_SIZE));
+		try (OutputStream out = new FileOutputStream(new File(directory, INFO_FILE_NAME))) {
+			info.store(out, null);
+		}
+		directory.setLastModified(System.currentTimeMillis());
+		deleteUnusedPyramids();
+	}
+
+	private static File getTileDirectory() {
+		return PropertyManager.getInstance().getPropertyFile(TILE_DIR_NAME);
+	}
+
+	/**
+	 * Deletes the least recently used pyramids (except this one) until the
+	 * tile directory is not larger than the maximal cache size.
+	 */
+	private void deleteUnusedPyramids() {
+		File[] dirs = getTileDirectory().listFiles(File::isDirectory);
+		if (dirs == null)
+			return;
+		Arrays.sort(dirs, Comparator.comparingLong(File::lastModified));
+		long[] sizes = new long[dirs.length];
+		long totalSize = 0;
+		for (int i = 0; i < dirs.length; i++) {
+			File[] files = dirs[i].listFiles();
+			if (files != null)
+				for (File file : files)
+					sizes[i] += file.length();
+			totalSize += sizes[i];
+		}
+		for (int i = 0; i < dirs.length && totalSize > MAX_CACHE_SIZE; i++) {
+			if (!dirs[i].equals(directory)) {
+				File[] files = dirs[i].listFiles();
+				if (files != null)
+					for (File file : files)
+						file.delete();
+				dirs[i].delete();
+				totalSize -= sizes[i];
+			}
+		}
+	}
+
+	/**
+	 * Cuts the image into full resolution tiles. The image is decoded once
+	 * from top to bottom into a buffer which holds one row of tiles. If the
+	 * reader does not deliver the rows in order (e.g. for interlaced images),
+	 * the image is read in strips instead.
+	 */
+	private void buildLevel0() throws IOException {
+		if (!readLevel0(true))
+			readLevel0(false);
+	}
+
+	/**
+	 * Opens a reader for the image file and cuts the image into tiles.
+	 * Returns false if sequential reading failed.
+	 */
+	private boolean readLevel0(boolean sequential) throws IOException {
+		try (ImageInputStream iis = ImageIO.createImageInputStream(imageFile)) {
+			if (iis == null)
+				throw new IOException("Cannot open file " + imageFile + ".");
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if (!readers.hasNext())
+				throw new IOException("Unsupported image format: " + imageFile + ".");
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(iis, false, true);
+				if (sequential)
+					return readSequentially(reader);
+				readInStrips(reader);
+				return true;
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Decodes the image with a single read and writes the tiles whenever a
+	 * row of tiles is complete. Returns false if the image could not be read
+	 * this way.
+	 */
+	private boolean readSequentially(ImageReader reader) throws IOException {
+		ImageTypeSpecifier type = reader.getImageTypes(0).next();
+		SampleModel sm = type.getSampleModel(width, height);
+		if (!(sm instanceof ComponentSampleModel)
+				|| (long) ((ComponentSampleModel) sm).getScanlineStride() * height > Integer.MAX_VALUE)
+			return false;
+		BufferedImage strip = type.createBufferedImage(width, TILE_SIZE);
+		if (!(strip.getSampleModel() instanceof ComponentSampleModel)
+				|| ((ComponentSampleModel) strip.getSampleModel()).getScanlineStride()
+				!= ((ComponentSampleModel) sm).getScanlineStride())
+			return false;
+		TileRowBuffer buffer = new TileRowBuffer(strip, ((ComponentSampleModel) sm).getScanlineStride());
+		BufferedImage image = new BufferedImage(type.getColorModel(),
+				Raster.createWritableRaster(sm, buffer, null), false, null);
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setDestination(image);
+		try {
+			reader.read(0, param);
+			buffer.writeTiles(height);
+			return true;
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} catch (IllegalStateException | IllegalArgumentException e) {
+			return false; // rows not in order or destination not supported
+		} finally {
+			strip.flush();
+		}
+	}
+
+	/**
+	 * Reads the image in strips and cuts them into full resolution tiles.
+	 * Depending on the format, the reader has to decode the image from the
+	 * beginning for each strip.
+	 */
+	private void readInStrips(ImageReader reader) throws IOException {
+		int stripHeight = TILE_SIZE * STRIP_TILES;
+		for (int y = 0; y < height; y += stripHeight) {
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceRegion(new Rectangle(0, y, width, Math.min(stripHeight, height - y)));
+			BufferedImage strip = reader.read(0, param);
+			writeTiles(strip, y, strip.getHeight());
+			strip.flush();
+		}
+	}
+
+	/**
+	 * Writes the level 0 tiles of a strip of the image.
+	 *
+	 * @param y
+	 *            Position of the strip within the image.
+	 * @param stripHeight
+	 *            Number of strip rows which contain image data.
+	 */
+	private void writeTiles(BufferedImage strip, int y, int stripHeight) throws IOException {
+		for (int ty = 0; ty < stripHeight; ty += TILE_SIZE) {
+			for (int tx = 0; tx < width; tx += TILE_SIZE) {
+				int w = Math.min(TILE_SIZE, width - tx);
+				int h = Math.min(TILE_SIZE, stripHeight - ty);
+				BufferedImage tile = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+				Graphics2D g = tile.createGraphics();
+				g.drawImage(strip.getSubimage(tx, ty, w, h), 0, 0, null);
+				g.dispose();
+				writeTile(tile, 0, tx / TILE_SIZE, (y + ty) / TILE_SIZE);
+			}
+		}
+	}
+
+	/** Combines four tiles of the previous level into one tile. */
+	private void buildLevel(int level) throws IOException {
+		int levelWidth = (width + (1 << level) - 1) >> level;
+		int levelHeight = (height + (1 << level) - 1) >> level;
+		for (int row = 0; row < getRowCount(level); row++) {
+			for (int col = 0; col < getColumnCount(level); col++) {
+				int w = Math.min(TILE_SIZE, levelWidth - col * TILE_SIZE);
+				int h = Math.min(TILE_SIZE, levelHeight - row * TILE_SIZE);
+				BufferedImage tile = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+				Graphics2D g = tile.createGraphics();
+				g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				for (int i = 0; i < 4; i++) {
+					int c = 2 * col + i % 2;
+					int r = 2 * row + i / 2;
+					if (c < getColumnCount(level - 1) && r < getRowCount(level - 1)) {
+						BufferedImage child = ImageIO.read(getTileFile(level - 1, c, r));
+						int x = (i % 2) * TILE_SIZE / 2;
+						int y = (i / 2) * TILE_SIZE / 2;
+						g.drawImage(child, x, y, (child.getWidth() + 1) / 2, (child.getHeight() + 1) / 2, null);
+					}
+				}
+				g.dispose();
+				writeTile(tile, level, col, row);
+			}
+		}
+	}
+
+	private void writeTile(BufferedImage tile, int level, int col, int row) throws IOException {
+		if (!ImageIO.write(tile, "jpg", getTileFile(level, col, row)))
+			throw new IOException("No JPEG writer available.");
+	}
+
+	/**
+	 * Data buffer of the full image which keeps only one row of tiles in
+	 * memory. The samples are stored in a strip image. When the reader starts
+	 * writing the next row of tiles, the tiles of the current row are written
+	 * and the strip is reused.
+	 */
+	private class TileRowBuffer extends DataBuffer {
+		private final BufferedImage strip;
+		private final DataBuffer stripData;
+		private final int scanlineStride;
+		/** Image row which corresponds to the first row of the strip. */
+		private int firstRow;
+
+		TileRowBuffer(BufferedImage strip, int scanlineStride) {
+			super(strip.getRaster().getDataBuffer().getDataType(),
+					scanlineStride * height, strip.getRaster().getDataBuffer().getNumBanks());
+			this.strip = strip;
+			stripData = strip.getRaster().getDataBuffer();
+			this.scanlineStride = scanlineStride;
+		}
+
+		@Override
+		public int getElem(int bank, int i) {
+			int row = i / scanlineStride;
+			return row >= firstRow && row < firstRow + TILE_SIZE
+					? stripData.getElem(bank, i - firstRow * scanlineStride) : 0;
+		}
+
+		@Override
+		public void setElem(int bank, int i, int val) {
+			int row = i / scanlineStride;
+			if (row < firstRow)
+				throw new IllegalStateException("Rows are not written in order.");
+			if (row >= firstRow + TILE_SIZE) {
+				try {
+					writeTiles(firstRow + TILE_SIZE);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				firstRow = row - row % TILE_SIZE;
+			}
+			stripData.setElem(bank, i - firstRow * scanlineStride, val);
+		}
+
+		/** Writes the tiles of the strip, which is filled up to the specified image row. */
+		void writeTiles(int endRow) throws IOException {
+			TilePyramid.this.writeTiles(strip, firstRow, Math.min(endRow, height) - firstRow);
+		}
+	}
+}